@@ -0,0 +1,30 @@
+package kvstore;
+
+/**
+ * Admission policy of a KVCache. Within a full set, the victim is always
+ * the entry picked by second chance; the policy decides whether a new key
+ * is worth replacing it. A SecondChancePolicy admits every key; a
+ * TinyLFUPolicy only admits keys read more often than their victim.
+ * Policies are shared by all the sets of a cache, so they must be thread
+ * safe.
+ */
+public interface CachePolicy {
+
+    /**
+     * Note a read of a key, whether it hits the cache or not.
+     *
+     * @param key the key read
+     */
+    public void recordAccess(String key);
+
+    /**
+     * Decide whether a new key replaces the victim picked for it.
+     *
+     * @param candidate the key to be cached
+     * @param victim the key it would evict
+     * @return true to evict the victim for the candidate, false to leave
+     *         the candidate out of the cache
+     */
+    public boolean admit(String candidate, String victim);
+
+}
@@ -0,0 +1,97 @@
+package kvstore;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values, such as durations in microseconds, in
+ * power-of-two buckets: bucket 0 counts zeros, and bucket i values from
+ * 2^(i-1) to 2^i - 1. Recording a value takes a few atomic operations and
+ * no lock, so histograms can stay on in production and be read at any
+ * time. Percentiles are the upper bound of their bucket, so they are at
+ * most twice the exact value.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value.
+     *
+     * @param value the value, negative values count as 0
+     */
+    public void record(long value) {
+    	if(value < 0)
+    		value = 0;
+    	buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+    	count.incrementAndGet();
+    	sum.addAndGet(value);
+    	long m;
+    	while(value > (m = max.get()) && !max.compareAndSet(m, value))
+    		; // raced with a larger value, retry
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, 0 if there is none
+     */
+    public double getMean() {
+    	long n = count.get();
+    	return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Get an upper bound of a percentile of the values recorded.
+     *
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, no more
+     *         than the largest value recorded; 0 if there is none
+     */
+    public long getPercentile(double percentile) {
+    	long n = count.get();
+    	long rank = (long) Math.ceil(n * percentile / 100);
+    	long seen = 0;
+    	for(int i = 0; i < BUCKETS; ++ i) {
+    		seen += buckets.get(i);
+    		if(seen >= rank && seen > 0)
+    			return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+    	}
+    	return max.get();
+    }
+
+    /**
+     * Append a summary of the histogram, one "name_stat value" line per
+     * statistic, in a form that is easy to scrape.
+     *
+     * @param sb where to append
+     * @param name prefix of the statistics
+     */
+    public void appendTo(StringBuilder sb, String name) {
+    	sb.append(name).append("_count ").append(getCount()).append('\n');
+    	sb.append(name).append("_mean ").append(String.format(Locale.ROOT, "%.1f", getMean())).append('\n');
+    	sb.append(name).append("_p50 ").append(getPercentile(50)).append('\n');
+    	sb.append(name).append("_p90 ").append(getPercentile(90)).append('\n');
+    	sb.append(name).append("_p99 ").append(getPercentile(99)).append('\n');
+    	sb.append(name).append("_max ").append(getMax()).append('\n');
+    }
+
+    @Override
+    public String toString() {
+    	StringBuilder sb = new StringBuilder();
+    	appendTo(sb, "histogram");
+    	return sb.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package kvstore;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the jobs of a NetworkHandler. A ThreadPool runs them on a fixed
+ * number of threads; a ThreadPerJobExecutor gives each a thread of its own.
+ */
+public interface JobExecutor {
+
+    /**
+     * Add a job to be executed as soon as the executor can.
+     *
+     * @param r job that has to be executed
+     * @throws InterruptedException if thread is interrupted while in blocked
+     *         state. Implementations may or may not actually throw this.
+     */
+    public void addJob(Runnable r) throws InterruptedException;
+
+    /**
+     * Add a job with an affinity: jobs with the same affinity, such as
+     * requests on keys of the same cache set, are better run one after the
+     * other on the same thread. Executors without threads to choose from
+     * ignore it.
+     *
+     * @param r job that has to be executed
+     * @param affinity non-negative affinity of the job, or -1 for none
+     * @throws InterruptedException as addJob(Runnable)
+     */
+    public void addJob(Runnable r, int affinity) throws InterruptedException;
+
+    /**
+     * Add a job with an affinity, as addJob, but neither wait for room nor
+     * run the job in the calling thread, whatever the executor otherwise
+     * does when it is full. Used by event loops, which must never block.
+     *
+     * @param r job that has to be executed
+     * @param affinity as addJob(Runnable, int)
+     * @throws RejectedExecutionException if the job cannot be queued at once
+     */
+    public void offerJob(Runnable r, int affinity);
+
+}
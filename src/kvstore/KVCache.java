@@ -1,7 +1,13 @@
 package kvstore;
 
-import java.util.LinkedList;
-import java.util.Map.Entry;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,25 +26,59 @@ import org.w3c.dom.Element;
  */
 public class KVCache implements KeyValueInterface {
 	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	/* first capacity of an off-heap slab, which then doubles as needed */
+	private static final int MIN_SLAB_BYTES = 4096;
+	/* VarHandle.acquireFence() on JVMs that have it (Java 9), else null */
+	private static final MethodHandle LOAD_FENCE = findLoadFence();
+	
+	/* statistics kept for each set, see getStats */
+	public static final int HITS = 0;
+	public static final int MISSES = 1;
+	public static final int INSERTS = 2;
+	public static final int REPLACEMENTS = 3;
+	public static final int EVICTIONS = 4;
+	public static final int ROTATIONS = 5;
+	public static final int REJECTIONS = 6;
+	public static final int BYPASSES = 7;
+	private static final String[] STAT_NAMES = { "hits", "misses", "inserts",
+		"replacements", "evictions", "rotations", "rejections", "bypasses" };
+	
 	private int numSets = 100;
 	private int numElem = 10;
-	
-	class Entry {
-		private String key;
-		private String value;
-		private boolean refer;
-		public Entry(String key,String value,boolean refer){
-			this.key=key;this.value=value;this.refer=refer;
-		}
-		public String getKey(){return key;}
-		public String getValue(){return value;}
-		public boolean getRefer(){return refer;}
-		public void setValue(String value){this.value=value;}
-		public void setRefer(boolean refer){this.refer=refer;}
-	}
+	/* byte bound of each set, and size above which entries bypass the cache */
+	private long maxSetBytes = Long.MAX_VALUE;
+	private long maxEntryBytes = Long.MAX_VALUE;
+	private CachePolicy policy = new SecondChancePolicy();
 	
 	Lock[] locks;
-	LinkedList<Entry>[] sets;
+	/*
+	 * The entries of all sets, in parallel arrays: set k owns the numElem
+	 * slots from k * numElem. A set is a circular queue of its entries,
+	 * oldest first, starting at the clock hand of the set, so second-chance
+	 * eviction advances the hand instead of moving entries around.
+	 * Keys and values are published with volatile writes, and the version
+	 * of a set is odd while its keys or values are being changed, so hits
+	 * can be read without the set lock, see getOptimistic.
+	 */
+	AtomicReferenceArray<String> keys;
+	AtomicReferenceArray<String> values;
+	boolean[] refer;
+	int[] hands;
+	int[] sizes;
+	long[] bytes;
+	AtomicIntegerArray versions;
+	StripedCounters stats;
+	/*
+	 * Off-heap values, null if values are kept on the heap: the UTF-8
+	 * bytes of the value of slot s are at offsets[s] in the slab of its set,
+	 * which is filled from 0 to its top and compacted, or grown, when full.
+	 * The slab of a set is null until it gets its first value.
+	 */
+	ByteBuffer[] slabs;
+	int[] offsets;
+	int[] lengths;
+	int[] tops;
 	
     /**
      * Constructs a second-chance-replacement cache.
@@ -46,18 +86,126 @@ public class KVCache implements KeyValueInterface {
      * @param numSets the number of sets this cache will have
      * @param maxElemsPerSet the size of each set
      */
-    @SuppressWarnings("unchecked")
     public KVCache(int numSets, int maxElemsPerSet) {
     	this.numSets = numSets;
     	this.numElem = maxElemsPerSet;
     	locks = new ReentrantLock[numSets];
-    	sets = new LinkedList[numSets];
-    	for(int i=0;i<numSets;++i) {
+    	for(int i=0;i<numSets;++i)
     		locks[i] = new ReentrantLock();
-    		sets[i] = new LinkedList<Entry>();
+    	keys = new AtomicReferenceArray<String>(numSets * numElem);
+    	values = new AtomicReferenceArray<String>(numSets * numElem);
+    	refer = new boolean[numSets * numElem];
+    	hands = new int[numSets];
+    	sizes = new int[numSets];
+    	bytes = new long[numSets];
+    	versions = new AtomicIntegerArray(numSets);
+    	stats = new StripedCounters(numSets * STAT_NAMES.length);
+    }
+
+    /**
+     * Constructs a second-chance-replacement cache bounded by bytes as well
+     * as by entries, so its heap use does not depend on the size of the
+     * values. The budget is split evenly between the sets, and a set evicts
+     * entries until a new one fits in both bounds. Entries larger than
+     * maxEntryBytes, or than the budget of a set, are not cached at all.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param maxBytes bound of the bytes of all entries, see entrySize
+     * @param maxEntryBytes entries above this size bypass the cache
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long maxBytes, long maxEntryBytes) {
+    	this(numSets, maxElemsPerSet);
+    	this.maxSetBytes = maxBytes / numSets;
+    	this.maxEntryBytes = Math.min(maxEntryBytes, maxSetBytes);
+    }
+
+    /**
+     * Constructs a byte-bounded second-chance-replacement cache, as above,
+     * which may keep its values off the heap. Values are then stored as
+     * UTF-8 in a direct buffer for each set, allocated with its first value
+     * and grown up to the budget of the set, only
+     * keys and slot metadata staying on the heap, so the work of the garbage
+     * collector depends on the number of entries and not on their size.
+     * The bytes of an off-heap entry are those of its UTF-8 value.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param maxBytes bound of the bytes of all entries
+     * @param maxEntryBytes entries above this size bypass the cache
+     * @param offHeap whether to keep values off the heap
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long maxBytes, long maxEntryBytes,
+    		boolean offHeap) {
+    	this(numSets, maxElemsPerSet, maxBytes, maxEntryBytes);
+    	if(offHeap) {
+    		maxSetBytes = Math.min(maxSetBytes, Integer.MAX_VALUE);
+    		this.maxEntryBytes = Math.min(maxEntryBytes, maxSetBytes);
+    		slabs = new ByteBuffer[numSets];
+    		offsets = new int[numSets * numElem];
+    		lengths = new int[numSets * numElem];
+    		tops = new int[numSets];
     	}
     }
 
+    /**
+     * Set the admission policy of the cache, a SecondChancePolicy unless
+     * told otherwise. To be called before the cache is used.
+     *
+     * @param policy decides which new keys are worth an eviction
+     */
+    public void setPolicy(CachePolicy policy) {
+    	this.policy = policy;
+    }
+
+    /**
+     * Bytes accounted to an entry: those of the chars of its key and value.
+     *
+     * @param key key of the entry
+     * @param value value of the entry
+     * @return size of the entry in bytes
+     */
+    public static long entrySize(String key, String value) {
+    	return 2L * (key.length() + value.length());
+    }
+
+    /**
+     * Index of the i-th oldest entry of a set.
+     */
+    private int slot(int k, int i) {
+    	return k * numElem + (hands[k] + i) % numElem;
+    }
+
+    /**
+     * Value of a slot, decoded if it is off the heap.
+     */
+    private String value(int s) {
+    	if(slabs == null)
+    		return values.get(s);
+    	byte[] utf8 = new byte[lengths[s]];
+    	ByteBuffer src = slabs[s / numElem].duplicate();
+    	src.position(offsets[s]);
+    	src.get(utf8);
+    	return new String(utf8, UTF_8);
+    }
+
+    /**
+     * Bytes accounted to the entry of a slot.
+     */
+    private long size(int s) {
+    	return slabs == null ? entrySize(keys.get(s), values.get(s)) : lengths[s];
+    }
+
+    /**
+     * Position of a key in the queue of its set, -1 if it is not cached.
+     */
+    private int find(int k, String key) {
+    	for(int i = 0; i < sizes[k]; ++ i)
+    		if(key.equals(keys.get(slot(k, i))))
+    			return i;
+    	return -1;
+    }
+
     /**
      * Retrieves an entry from the cache.
      * Assumes access to the corresponding set has already been locked by the
@@ -69,28 +217,123 @@ public class KVCache implements KeyValueInterface {
      */
     @Override
     public String get(String key) {
+        policy.recordAccess(key);
         int k = getSetId(key);
-        for(Entry e : sets[k]) {
-        	if(e.getKey().equals(key)) {
-        		e.setRefer(true);
-        		return e.getValue();
-        	}
+        int i = find(k, key);
+        if(i < 0) {
+        	count(k, MISSES);
+        	return null;
         }
-        return null;
+        count(k, HITS);
+        int s = slot(k, i);
+        refer[s] = true;
+        return value(s);
+    }
+
+    /**
+     * Retrieves an entry from the cache without locking its set. A writer
+     * of the set makes its version odd while it changes keys or values, so
+     * a value is only returned if the version was even and unchanged across
+     * the lookup. The reference bit of a hit is set without the lock; at
+     * worst it lands on an entry replaced meanwhile, which then gets an
+     * undeserved second chance.
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key, or null if the key is not
+     *         in the cache or the set was being changed; the caller then
+     *         falls back to get under the set lock
+     */
+    public String getOptimistic(String key) {
+    	int k = getSetId(key);
+    	int version = versions.get(k);
+    	if((version & 1) != 0)
+    		return null; // a writer is at work
+    	for(int s = k * numElem; s < (k + 1) * numElem; ++ s) {
+    		if(key.equals(keys.get(s))) {
+    			String value;
+    			if(slabs == null) {
+    				value = values.get(s);
+    				if(versions.get(k) != version)
+    					return null;
+    			} else {
+    				// the bytes are copied out before the version is checked
+    				value = readOffHeap(k, s);
+    				if(value == null || !unchanged(k, version))
+    					return null;
+    			}
+    			refer[s] = true;
+    			policy.recordAccess(key);
+    			count(k, HITS);
+    			return value;
+    		}
+    	}
+    	return null;
+    }
+
+    /**
+     * Read an off-heap value without the set lock, so its slot may be
+     * changing: anything read is only trusted once the version of the set
+     * is found unchanged.
+     *
+     * @return the value read, null if the slot is not even consistent
+     */
+    private String readOffHeap(int k, int s) {
+    	try {
+    		ByteBuffer slab = slabs[k];
+    		int offset = offsets[s], length = lengths[s];
+    		if(slab == null || offset < 0 || length < 0 || offset > slab.capacity() - length)
+    			return null;
+    		byte[] utf8 = new byte[length];
+    		ByteBuffer src = slab.duplicate();
+    		src.position(offset);
+    		src.get(utf8);
+    		return new String(utf8, UTF_8); // never fails, even on torn bytes
+    	} catch (RuntimeException e) { // a slab grown meanwhile, seen half built
+    		return null;
+    	}
+    }
+
+    /**
+     * Whether the version of a set is still the one read before reading an
+     * off-heap value without the lock. Those plain reads may otherwise be
+     * reordered past the volatile read of the version, so a load fence
+     * keeps them before it; on JVMs without one, a compare-and-set leaving
+     * the version as it is serves as a full fence.
+     */
+    private boolean unchanged(int k, int version) {
+    	if(LOAD_FENCE == null)
+    		return versions.compareAndSet(k, version, version);
+    	try {
+    		LOAD_FENCE.invokeExact();
+    	} catch (Throwable e) {
+    		throw new AssertionError(e); // a fence throws nothing
+    	}
+    	return versions.get(k) == version;
+    }
+
+    private static MethodHandle findLoadFence() {
+    	try {
+    		return MethodHandles.publicLookup().findStatic(
+    				Class.forName("java.lang.invoke.VarHandle"), "acquireFence",
+    				MethodType.methodType(void.class));
+    	} catch (Exception e) {
+    		return null;
+    	}
     }
 
     /**
      * Adds an entry to this cache.
      * If an entry with the specified key already exists in the cache, it is
      * replaced by the new entry. When an entry is replaced, its reference bit
-     * will be set to True. If the set is full, an entry is removed from
-     * the cache based on the eviction policy. If the set is not full, the entry
-     * will be inserted behind all existing entries. For this policy, we suggest
-     * using a LinkedList over an array to keep track of entries in a set since
-     * deleting an entry in an array will leave a gap in the array, likely not
-     * at the end. More details and explanations in the spec. Assumes access to
-     * the corresponding set has already been locked by the caller of this
-     * method.
+     * will be set to True. If the set is full, or the entry does not fit in
+     * its byte budget, entries are removed from the cache based on the
+     * eviction policy; an entry too large for the cache is dropped instead,
+     * along with any older value of its key. A new key is also dropped if
+     * the admission policy prefers its first victim, before any entry is
+     * removed for it. Otherwise, the entry
+     * will be inserted behind all existing entries. More details and
+     * explanations in the spec. Assumes access to the corresponding set has
+     * already been locked by the caller of this method.
      *
      * @param key the key with which the specified value is to be associated
      * @param value a value to be associated with the specified key
@@ -98,25 +341,59 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void put(String key, String value) {
         int k = getSetId(key);
+        byte[] utf8 = slabs == null ? null : value.getBytes(UTF_8);
+        long size = utf8 == null ? entrySize(key, value) : utf8.length;
         // check if key exists
-        for(Entry e: sets[k]) {
-        	if(e.getKey().equals(key)) {
-        		e.setValue(value);
-        		e.setRefer(true);
-        		return ;
-        	}
+        int i = find(k, key);
+        if(size > maxEntryBytes) { // too large, do not keep a stale value either
+        	count(k, BYPASSES);
+        	if(i >= 0)
+        		remove(k, i);
+        	return ;
+        }
+        boolean replaced = false;
+        if(i >= 0 && utf8 != null) {
+        	// the old bytes cannot be overwritten in place, the entry is
+        	// inserted anew, behind all others but still referenced
+        	remove(k, i);
+        	replaced = true;
+        	count(k, REPLACEMENTS);
+        } else
+        if(i >= 0) {
+        	int s = slot(k, i);
+        	bytes[k] += size - entrySize(key, values.get(s));
+        	versions.incrementAndGet(k);
+        	values.set(s, value);
+        	versions.incrementAndGet(k);
+        	refer[s] = true;
+        	count(k, REPLACEMENTS);
+        	while(bytes[k] > maxSetBytes) // grew past the budget
+        		evict(k);
+        	return ;
         }
-        // does not exist
-        if(sets[k].size() == numElem) { // remove one element
-        	while(sets[k].getFirst().getRefer()) {
-        		Entry t = sets[k].remove();
-        		t.setRefer(false);
-        		sets[k].add(t);
+        // does not exist; admitted once, against its first victim, so that
+        // a rejected key never costs the set an entry
+        if(!replaced && (sizes[k] == numElem || bytes[k] + size > maxSetBytes)) {
+        	secondChance(k);
+        	if(!policy.admit(key, keys.get(slot(k, 0)))) {
+        		count(k, REJECTIONS);
+        		return ; // not worth its victim
         	}
-        	sets[k].remove(); // remove the first element marked
         }
-        // add a new entry
-        sets[k].add(new Entry(key, value, false));
+        while(sizes[k] == numElem || bytes[k] + size > maxSetBytes)
+        	evict(k);
+        int s = slot(k, sizes[k] ++);
+        versions.incrementAndGet(k);
+        keys.set(s, key);
+        if(utf8 == null)
+        	values.set(s, value);
+        else
+        	store(k, s, utf8);
+        versions.incrementAndGet(k);
+        refer[s] = replaced;
+        bytes[k] += size;
+        if(!replaced)
+        	count(k, INSERTS);
     }
 
     /**
@@ -129,12 +406,145 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void del(String key) {
     	int k = getSetId(key);
-        for(Entry e : sets[k]) {
-        	if(e.getKey().equals(key)) {
-        		sets[k].remove(e);
-        		return ;
-        	}
-        }
+    	int i = find(k, key);
+    	if(i >= 0)
+    		remove(k, i);
+    }
+
+    /**
+     * Remove the first entry of a set not marked referenced.
+     */
+    private void evict(int k) {
+    	secondChance(k);
+    	remove(k, 0);
+    	count(k, EVICTIONS);
+    }
+
+    /**
+     * Bring the first entry of a set not marked referenced to the front,
+     * clearing the marks of those before it, which are moved behind all
+     * others.
+     */
+    private void secondChance(int k) {
+    	int s;
+    	while(refer[s = slot(k, 0)]) {
+    		refer[s] = false;
+    		count(k, ROTATIONS);
+    		if(sizes[k] < numElem) { // a full queue wraps around, no move needed
+    			int t = slot(k, sizes[k]);
+    			versions.incrementAndGet(k);
+    			move(s, t);
+    			clear(s);
+    			versions.incrementAndGet(k);
+    		}
+    		hands[k] = (hands[k] + 1) % numElem;
+    	}
+    }
+
+    /**
+     * Remove the i-th oldest entry of a set.
+     */
+    private void remove(int k, int i) {
+    	int s = slot(k, i);
+    	bytes[k] -= size(s);
+    	versions.incrementAndGet(k);
+    	if(i == 0) // the oldest, just advance the hand past it
+    		hands[k] = (hands[k] + 1) % numElem;
+    	else { // close the gap, keeping the order of the later entries
+    		for(; i + 1 < sizes[k]; ++ i) {
+    			int t = slot(k, i + 1);
+    			move(t, s);
+    			s = t;
+    		}
+    	}
+    	clear(s);
+    	-- sizes[k];
+    	versions.incrementAndGet(k);
+    }
+
+    /**
+     * Copy the entry of a slot to another. Callers bump the version.
+     */
+    private void move(int from, int to) {
+    	keys.set(to, keys.get(from));
+    	values.set(to, values.get(from));
+    	refer[to] = refer[from];
+    	if(slabs != null) {
+    		offsets[to] = offsets[from];
+    		lengths[to] = lengths[from];
+    	}
+    }
+
+    /**
+     * Empty a slot. Callers bump the version.
+     */
+    private void clear(int s) {
+    	keys.set(s, null);
+    	values.set(s, null);
+    	refer[s] = false;
+    	if(slabs != null)
+    		lengths[s] = 0;
+    }
+
+    /**
+     * Copy a value into the slab of its set, compacting or growing the slab
+     * first if the value does not fit after its top. The byte budget of the
+     * set, the largest size of its slab, guarantees it then fits. Callers
+     * bump the version.
+     */
+    private void store(int k, int s, byte[] utf8) {
+    	if(slabs[k] == null || tops[k] + utf8.length > slabs[k].capacity())
+    		compact(k, s, utf8.length);
+    	ByteBuffer dst = slabs[k].duplicate();
+    	dst.position(tops[k]);
+    	dst.put(utf8);
+    	offsets[s] = tops[k];
+    	lengths[s] = utf8.length;
+    	tops[k] += utf8.length;
+    }
+
+    /**
+     * Move the live values of a set to the start of its slab, in the order
+     * of their offsets so that none is overwritten before it is moved. If
+     * they would leave no room for the value to store, they move to the
+     * start of a new slab instead, of twice the size up to the budget.
+     *
+     * @param skip slot being filled, whose old bytes are dead
+     * @param need bytes of the value to store
+     */
+    private void compact(int k, int skip, int need) {
+    	int[] live = new int[sizes[k]];
+    	int n = 0;
+    	long used = need;
+    	for(int i = 0; i < sizes[k]; ++ i) {
+    		int s = slot(k, i);
+    		if(s == skip)
+    			continue;
+    		int j = n ++; // insertion sort by offset, sets are small
+    		for(; j > 0 && offsets[live[j - 1]] > offsets[s]; -- j)
+    			live[j] = live[j - 1];
+    		live[j] = s;
+    		used += lengths[s];
+    	}
+    	ByteBuffer from = slabs[k], to = from;
+    	if(from == null || used > from.capacity()) {
+    		long capacity = Math.max(used, from == null ? MIN_SLAB_BYTES : 2L * from.capacity());
+    		to = ByteBuffer.allocateDirect((int) Math.min(capacity, maxSetBytes));
+    	}
+    	int top = 0;
+    	for(int j = 0; j < n; ++ j) {
+    		int s = live[j];
+    		ByteBuffer src = from.duplicate();
+    		src.position(offsets[s]);
+    		src.limit(offsets[s] + lengths[s]);
+    		ByteBuffer dst = to.duplicate();
+    		dst.position(top);
+    		dst.put(src); // towards lower offsets, if in the same slab
+    		offsets[s] = top;
+    		top += lengths[s];
+    	}
+    	slabs[k] = to;
+    	tops[k] = top;
     }
 
     /**
@@ -155,8 +565,69 @@ public class KVCache implements KeyValueInterface {
      * @param  key key of interest
      * @return set of the key
      */
-    private int getSetId(String key) {
-        return Math.abs(key.hashCode()) % numSets;
+    public int getSetId(String key) {
+        return (key.hashCode() & 0x7fffffff) % numSets; // Math.abs(MIN_VALUE) < 0
+    }
+
+    private void count(int k, int stat) {
+    	stats.increment(k * STAT_NAMES.length + stat);
+    }
+
+    /**
+     * Get a statistic of a set: HITS and MISSES of get and getOptimistic
+     * (whose misses are counted by the get falling back), INSERTS of new
+     * keys, REPLACEMENTS of the values of cached keys, EVICTIONS, ROTATIONS
+     * of referenced entries given their second chance, REJECTIONS of new
+     * keys by the admission policy, and BYPASSES of entries too large to
+     * be cached.
+     *
+     * @param k id of the set
+     * @param stat the statistic
+     * @return its value
+     */
+    public long getStat(int k, int stat) {
+    	return stats.get(k * STAT_NAMES.length + stat);
+    }
+
+    /**
+     * Get a statistic of the whole cache, see getStat(int, int).
+     *
+     * @param stat the statistic
+     * @return its sum over the sets
+     */
+    public long getStat(int stat) {
+    	long sum = 0;
+    	for(int k = 0; k < numSets; ++ k)
+    		sum += getStat(k, stat);
+    	return sum;
+    }
+
+    /**
+     * Get the statistics of the cache, one "name_stat value" line for
+     * each, then one "name_stat{set="k"} value" line for each set, in a
+     * form that is easy to scrape. The rotations per eviction tell how
+     * long the clock hand sweeps: a high value means most entries are
+     * referenced again before it comes back to them. Counts are taken
+     * without stopping the cache, so they may be a little behind.
+     *
+     * @param name prefix of the statistics
+     * @return the statistics
+     */
+    public String getStats(String name) {
+    	StringBuilder sb = new StringBuilder();
+    	for(int stat = 0; stat < STAT_NAMES.length; ++ stat)
+    		sb.append(name).append('_').append(STAT_NAMES[stat]).append(' ')
+    			.append(getStat(stat)).append('\n');
+    	long evictions = getStat(EVICTIONS);
+    	double perEviction = evictions == 0 ? 0 : (double) getStat(ROTATIONS) / evictions;
+    	sb.append(name).append("_rotations_per_eviction ")
+    		.append(String.format(Locale.ROOT, "%.2f", perEviction)).append('\n');
+    	for(int k = 0; k < numSets; ++ k)
+    		for(int stat = 0; stat < STAT_NAMES.length; ++ stat)
+    			sb.append(name).append('_').append(STAT_NAMES[stat])
+    				.append("{set=\"").append(k).append("\"} ")
+    				.append(getStat(k, stat)).append('\n');
+    	return sb.toString();
     }
 
     /**
@@ -174,16 +645,17 @@ public class KVCache implements KeyValueInterface {
     			Element s = doc.createElement("Set");
     			s.setAttribute("Id", Integer.toString(k));
     			rootElement.appendChild(s);
-    			for(Entry e: sets[k]) {
+    			for(int i = 0; i < sizes[k]; ++ i) {
+    				int e = slot(k, i);
     				Element p = doc.createElement("CacheEntry");
-    				p.setAttribute("isReferenced", Boolean.toString(e.getRefer()));
+    				p.setAttribute("isReferenced", Boolean.toString(refer[e]));
     				s.appendChild(p);
     				
     				Element key = doc.createElement("Key");
-    				key.appendChild(doc.createTextNode(e.getKey()));
+    				key.appendChild(doc.createTextNode(keys.get(e)));
     				p.appendChild(key);
     				Element value = doc.createElement("Value");
-    				value.appendChild(doc.createTextNode(e.getValue()));
+    				value.appendChild(doc.createTextNode(value(e)));
     				p.appendChild(value);
     			}
     		}
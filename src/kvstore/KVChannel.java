@@ -0,0 +1,301 @@
+package kvstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A connection served by an event loop of a selector-based SocketServer.
+ * Bytes are read off the channel without blocking, in any of the wire
+ * formats of KVConnection, and a request is handed to the MessageHandler
+ * only once it has been received in full. Responses may come from any
+ * thread: they are queued, and written by the event loop as the channel
+ * accepts them.
+ * Behaves as KVConnection.serve: a XML connection carries a single
+ * request, and is closed once it is answered; a reusable connection that
+ * breaks or sends an invalid message is closed.
+ * A client that pipelines requests without reading the responses is pushed
+ * back on: once MAX_OUTPUT bytes of responses are queued, the channel is
+ * not read until they are written.
+ */
+class KVChannel {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int UNKNOWN = -1;
+    private static final int INITIAL_BUFFER = 4096;
+    /* bytes of queued responses past which no more requests are read */
+    static final int MAX_OUTPUT = 1 << 20;
+
+    private SocketChannel channel;
+    private SelectorLoop loop;
+    private MessageHandler handler;
+    private SelectionKey key = null;
+
+    /* received bytes not dispatched yet, only used by the event loop */
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+    private volatile int wire = UNKNOWN;
+
+    /* encoded responses waiting to be written */
+    private LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+    private int outputBytes = 0;
+    /* whether reading waits for the output to be written, event loop only */
+    private boolean paused = false;
+    /* whether to close the channel once the output is written */
+    private volatile boolean closing = false;
+
+    KVChannel(SocketChannel channel, SelectorLoop loop, MessageHandler handler) {
+        this.channel = channel;
+        this.loop = loop;
+        this.handler = handler;
+    }
+
+    /**
+     * A reusable connection the wire format of which is already known.
+     *
+     * @param wire FRAMED_XML or BINARY, as KVConnection
+     * @param received bytes read off the channel but not parsed yet
+     */
+    KVChannel(SocketChannel channel, SelectorLoop loop, MessageHandler handler,
+    		int wire, byte[] received) {
+        this(channel, loop, handler);
+        this.wire = wire;
+        if(received.length > in.capacity())
+        	in = ByteBuffer.allocate(received.length);
+        in.put(received);
+    }
+
+    /**
+     * Start reading the channel. Called by the event loop.
+     *
+     * @param selector Selector of the event loop
+     */
+    void register(Selector selector) {
+    	try {
+    		channel.configureBlocking(false);
+    		key = channel.register(selector, SelectionKey.OP_READ, this);
+    		if(in.position() > 0 && wire != UNKNOWN && wire != KVConnection.XML)
+    			readFrames(); // handed over with requests in it
+    	} catch (ClosedChannelException e) {
+    		close();
+    	} catch (IOException e) {
+    		close();
+    	}
+    }
+
+    /**
+     * Read what the channel has for us, and dispatch any request received
+     * in full. Called by the event loop when the channel is readable.
+     */
+    void read() {
+    	int n;
+    	try {
+    		if(!in.hasRemaining() && !grow()) {
+    			close(); // larger than any message
+    			return ;
+    		}
+    		n = channel.read(in);
+    	} catch (IOException e) {
+    		close();
+    		return ;
+    	}
+    	if(n < 0) {
+    		endOfInput();
+    		return ;
+    	}
+    	if(wire == UNKNOWN && in.position() > 0) { // first byte, as KVConnection.accept
+    		int first = in.get(0);
+    		if(first == KVConnection.BINARY_MARKER) {
+    			wire = KVConnection.BINARY;
+    			in.flip();
+    			in.get();
+    			in.compact();
+    		} else
+    			wire = KVMessage.isFramed(first) ? KVConnection.FRAMED_XML : KVConnection.XML;
+    	}
+    	if(wire == KVConnection.BINARY || wire == KVConnection.FRAMED_XML)
+    		readFrames();
+    }
+
+    /**
+     * Dispatch the frames received in full, keeping any partial one. A
+     * frame that cannot be parsed is answered as in KVConnection.serve.
+     */
+    private void readFrames() {
+    	in.flip();
+    	while(in.remaining() >= 4) {
+    		if(backlogged()) { // keep the rest until the client reads
+    			paused = true;
+    			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    			break;
+    		}
+    		int length = in.getInt(in.position());
+    		if(length <= 0 || length > KVMessage.MAX_FRAME_SIZE) {
+    			close();
+    			return ;
+    		}
+    		if(in.remaining() < 4 + length)
+    			break;
+    		in.position(in.position() + 4);
+    		byte[] body = new byte[length];
+    		in.get(body);
+    		KVMessage req;
+    		try {
+    			if(wire == KVConnection.BINARY)
+    				req = KVMessage.fromBinary(body);
+    			else
+    				req = new KVMessage(new ByteArrayInputStream(body));
+    		} catch (KVException e) { // the framing is intact, go on
+    			respond(new KVMessage(KVConstants.RESP, KVConstants.ERROR_INVALID_FORMAT),
+    					KVMessage.peekRequestID(body, wire == KVConnection.BINARY));
+    			continue;
+    		}
+    		dispatch(req);
+    	}
+    	in.compact();
+    }
+
+    /**
+     * The other side is done sending: a XML request is complete, and
+     * a reusable connection is closed.
+     */
+    private void endOfInput() {
+    	if(wire != KVConnection.XML) {
+    		close();
+    		return ;
+    	}
+    	key.interestOps(0); // nothing more to read
+    	KVMessage req;
+    	try {
+    		req = new KVMessage(new ByteArrayInputStream(in.array(), 0, in.position()));
+    	} catch (KVException e) {
+    		respond(e.getKVMessage(), 0); // tell the client what went wrong
+    		return ;
+    	}
+    	in = null;
+    	dispatch(req);
+    }
+
+    /**
+     * Make room for a message larger than the buffer.
+     *
+     * @return false if the message is too large
+     */
+    private boolean grow() {
+    	int limit = KVMessage.MAX_FRAME_SIZE + (wire == KVConnection.XML ? 0 : 4);
+    	if(in.capacity() >= limit)
+    		return false;
+    	ByteBuffer larger = ByteBuffer.allocate(Math.min(in.capacity() * 2, limit));
+    	in.flip();
+    	larger.put(in);
+    	in = larger;
+    	return true;
+    }
+
+    private void dispatch(KVMessage req) {
+    	final long requestID = req.getRequestID();
+    	try {
+    		handler.handle(req, new MessageHandler.Responder() {
+    			@Override
+    			public void respond(KVMessage resp) {
+    				KVChannel.this.respond(resp, requestID);
+    			}
+    		});
+    	} catch (RejectedExecutionException e) { // overloaded, tell the client at once
+    		respond(new KVMessage(KVConstants.RESP, KVConstants.ERROR_OVERLOADED), requestID);
+    	}
+    }
+
+    /**
+     * Queue the response to a request, as KVConnection.respond. Called by
+     * any thread; the message is encoded by the caller.
+     */
+    private void respond(KVMessage resp, long requestID) {
+    	if(resp == null && wire != KVConnection.XML)
+    		resp = new KVMessage(KVConstants.RESP, KVConstants.ERROR_INVALID_FORMAT);
+    	if(resp != null) {
+    		resp.setRequestID(requestID);
+    		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    		try {
+    			if(wire == KVConnection.BINARY)
+    				resp.sendBinaryMessage(bytes);
+    			else if(wire == KVConnection.FRAMED_XML)
+    				resp.sendFramedMessage(bytes);
+    			else
+    				bytes.write(resp.toXML().getBytes(UTF_8));
+    			synchronized(output) {
+    				output.add(ByteBuffer.wrap(bytes.toByteArray()));
+    				outputBytes += bytes.size();
+    			}
+    		} catch (KVException e) {
+    			// nothing can be done
+    		} catch (IOException e) {
+    			// not thrown by a ByteArrayOutputStream
+    		}
+    	}
+    	if(wire == KVConnection.XML) // once the response is written
+    		closing = true;
+    	loop.wantWrite(this);
+    }
+
+    /**
+     * Write as much of the queued output as the channel accepts, and wait
+     * for it to accept more if needed. Called by the event loop.
+     */
+    void flush() {
+    	if(key == null || !key.isValid())
+    		return ;
+    	try {
+    		synchronized(output) {
+    			while(!output.isEmpty()) {
+    				ByteBuffer buf = output.getFirst();
+    				outputBytes -= channel.write(buf);
+    				if(buf.hasRemaining())
+    					break;
+    				output.removeFirst();
+    			}
+    			if(!output.isEmpty())
+    				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    			else if(closing)
+    				close();
+    			else
+    				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    		}
+    	} catch (IOException e) {
+    		close();
+    		return ;
+    	}
+    	if(paused && key.isValid() && !backlogged()) { // read again
+    		paused = false;
+    		key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    		readFrames();
+    	}
+    }
+
+    private boolean backlogged() {
+    	synchronized(output) {
+    		return outputBytes >= MAX_OUTPUT;
+    	}
+    }
+
+    /**
+     * Closes the channel.
+     * Best effort, ignores error.
+     */
+    void close() {
+    	if(key != null)
+    		key.cancel();
+    	try {
+    		channel.close();
+    	} catch (IOException e) {
+    		// ignore, best effort
+    	}
+    }
+}
@@ -4,14 +4,31 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Client API used to issue requests to key-value server.
+ * With the XML wire format every request is sent on a new connection. With
+ * the others, requests share one long-lived connection and are pipelined:
+ * threads using the same KVClient have their requests outstanding at once,
+ * and each gets its own response whatever order they come back in.
  */
 public class KVClient implements KeyValueInterface {
 
+    /* milliseconds a request waits for its response by default */
+    public static final int DEFAULT_TIMEOUT = 30000;
+
     private String server;
     private int port;
+    private int wire = KVConnection.XML;
+    private volatile int timeout = DEFAULT_TIMEOUT;
+    private Pipeline pipeline = null;
 
     /**
      * Constructs a KVClient connected to a server.
@@ -24,6 +41,73 @@ public class KVClient implements KeyValueInterface {
         this.port = port;
     }
 
+    /**
+     * Set the wire format of requests, XML by default. The binary encoding
+     * is cheaper to produce and parse, and understood by every server
+     * in this package.
+     *
+     * @param wire KVConnection.XML, KVConnection.FRAMED_XML or
+     *        KVConnection.BINARY
+     */
+    public synchronized void setWireFormat(int wire) {
+        this.wire = wire;
+        close();
+    }
+
+    /**
+     * Set how long a request waits for its response, DEFAULT_TIMEOUT
+     * unless told otherwise. A request that times out fails with
+     * ERROR_SOCKET_TIMEOUT on a XML connection and with
+     * ERROR_COULD_NOT_RECEIVE_DATA on a long-lived one, whose other
+     * requests go on.
+     *
+     * @param timeout milliseconds, 0 to wait without limit
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Closes the long-lived connection, if any. Requests still outstanding
+     * on it fail; a later request opens a new one.
+     */
+    public synchronized void close() {
+    	if(pipeline != null)
+    		pipeline.close(new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA));
+    	pipeline = null;
+    }
+
+    /**
+     * Send a request to the server and receive its response, on the
+     * long-lived connection unless the wire format is XML.
+     *
+     * @param  msg the request
+     * @return the response
+     * @throws KVException if unable to connect, send or receive
+     */
+    private KVMessage exchange(KVMessage msg) throws KVException {
+    	Pipeline p = null;
+    	synchronized(this) {
+    		if(wire != KVConnection.XML) {
+    			if(pipeline == null || pipeline.isClosed()) // open a new one
+    				pipeline = new Pipeline(KVConnection.open(connectHost(), wire));
+    			p = pipeline;
+    		}
+    	}
+    	if(p != null)
+    		return p.exchange(msg);
+    	
+    	Socket sock = null;
+    	try {
+    		sock = connectHost();
+    		KVConnection conn = KVConnection.open(sock, wire);
+    		conn.send(msg);
+    		return conn.receive(timeout);
+    	} finally {
+    		if(sock != null) closeHost(sock);
+    	}
+    }
+
     /**
      * Creates a socket connected to the server to make a request.
      *
@@ -75,18 +159,10 @@ public class KVClient implements KeyValueInterface {
     	msg.setKey(key);
     	msg.setValue(value);
     	
-    	Socket sock = null;
-    	try {
-    		sock = connectHost();
-    		msg.sendMessage(sock);
-    	
-    		// Receive Response
-    		KVMessage resp = new KVMessage(sock); // we don't need to print the success msg
-    		if(!KVConstants.SUCCESS.equals(resp.getMessage())) // not success
-    			throw new KVException(resp.getMessage()); // throw an exception
-    	} finally {
-    		if(sock != null) closeHost(sock);
-    	}
+    	// Receive Response
+    	KVMessage resp = exchange(msg); // we don't need to print the success msg
+    	if(!KVConstants.SUCCESS.equals(resp.getMessage())) // not success
+    		throw new KVException(resp.getMessage()); // throw an exception
     }
 
     /**
@@ -106,20 +182,12 @@ public class KVClient implements KeyValueInterface {
     	KVMessage msg = new KVMessage(KVConstants.GET_REQ);
     	msg.setKey(key);
     	
-    	Socket sock = null;
-    	try {
-	    	sock = connectHost();
-	    	msg.sendMessage(sock);
-	    	
-	    	// Receive Response
-	    	KVMessage resp = new KVMessage(sock);
-	    	
-	    	if(resp.getValue() == null) // if no such key, throw an exception
-	    		throw new KVException(resp.getMessage());
-	    	return resp.getValue();
-    	} finally {
-    		if(sock != null) closeHost(sock);
-    	}
+    	// Receive Response
+    	KVMessage resp = exchange(msg);
+    	
+    	if(resp.getValue() == null) // if no such key, throw an exception
+    		throw new KVException(resp.getMessage());
+    	return resp.getValue();
     }
 
     /**
@@ -138,19 +206,196 @@ public class KVClient implements KeyValueInterface {
     	KVMessage msg = new KVMessage(KVConstants.DEL_REQ);
     	msg.setKey(key);
     	
-    	Socket sock = null;
-    	try {
-    		sock = connectHost();
-    		msg.sendMessage(sock);
-    	
-    		// Receive Response
-    		KVMessage resp = new KVMessage(sock); // we don't need to print the success msg
-    		if(!KVConstants.SUCCESS.equals(resp.getMessage())) // not success
-    			throw new KVException(resp.getMessage()); // throw an exception
-    	} finally {
-    		if(sock != null) closeHost(sock);
+    	// Receive Response
+    	KVMessage resp = exchange(msg); // we don't need to print the success msg
+    	if(!KVConstants.SUCCESS.equals(resp.getMessage())) // not success
+    		throw new KVException(resp.getMessage()); // throw an exception
+    }
+
+    /**
+     * Issues a MGET request to the server, getting many keys at once.
+     *
+     * @param  keys Strings to get values for in server
+     * @return the keys found in server with their values, in order
+     * @throws KVException if the request was not successful in any way
+     */
+    public Map<String, String> mget(Collection<String> keys) throws KVException {
+    	KVMessage resp = exchange(batchRequest(KVConstants.MGET_REQ, keys));
+    	if(resp.getBatch() == null) // failed, throw an exception
+    		throw new KVException(resp.getMessage());
+    	return resp.getBatch();
+    }
+
+    /**
+     * Issues a MPUT request to the server, putting many keys at once.
+     * Nothing is put unless every key and value is valid.
+     *
+     * @param  entries keys and values to put in server
+     * @throws KVException if the request was not successful in any way
+     */
+    public void mput(Map<String, String> entries) throws KVException {
+    	for(Map.Entry<String, String> e : entries.entrySet()) {
+    		if (e.getValue() == null || e.getValue().length() == 0)
+    			throw new KVException(KVConstants.ERROR_INVALID_VALUE);
     	}
+    	KVMessage msg = batchRequest(KVConstants.MPUT_REQ, entries.keySet());
+    	msg.getBatch().putAll(entries);
+
+    	KVMessage resp = exchange(msg);
+    	if(!KVConstants.SUCCESS.equals(resp.getMessage())) // not success
+    		throw new KVException(resp.getMessage());
     }
 
+    /**
+     * Issues a MDEL request to the server, deleting many keys at once.
+     * Keys that are not in server are skipped.
+     *
+     * @param  keys Strings to delete values for in server
+     * @throws KVException if the request was not successful in any way
+     */
+    public void mdel(Collection<String> keys) throws KVException {
+    	KVMessage resp = exchange(batchRequest(KVConstants.MDEL_REQ, keys));
+    	if(!KVConstants.SUCCESS.equals(resp.getMessage())) // not success
+    		throw new KVException(resp.getMessage());
+    }
 
+    /**
+     * Build a batch request on a non-empty collection of valid keys.
+     */
+    private KVMessage batchRequest(String msgType, Collection<String> keys) throws KVException {
+    	if (keys.isEmpty())
+    		throw new KVException(KVConstants.ERROR_INVALID_KEY);
+    	Map<String, String> batch = new LinkedHashMap<String, String>();
+    	for(String key : keys) {
+    		if (key == null || key.length() == 0)
+    			throw new KVException(KVConstants.ERROR_INVALID_KEY);
+    		batch.put(key, null);
+    	}
+    	KVMessage msg = new KVMessage(msgType);
+    	msg.setBatch(batch);
+    	return msg;
+    }
+
+    /**
+     * A long-lived connection carrying pipelined requests. Each request
+     * gets a new request ID, and a thread reading the responses hands each
+     * of them to the caller waiting for its ID.
+     */
+    private class Pipeline implements Runnable {
+
+        private KVConnection conn;
+        private HashMap<Long, Outstanding> outstanding = new HashMap<Long, Outstanding>();
+        private long nextRequestID = 0;
+        private boolean closed = false;
+
+        public Pipeline(KVConnection conn) {
+            this.conn = conn;
+            Thread reader = new Thread(this, "KVClient-pipeline");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Send a request and wait for its response, forgetting it if it
+         * times out so that a late response is dropped.
+         */
+        public KVMessage exchange(KVMessage msg) throws KVException {
+        	Outstanding request = new Outstanding();
+        	msg = new KVMessage(msg);
+        	synchronized(this) {
+        		if(closed)
+        			throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+        		msg.setRequestID(++ nextRequestID);
+        		outstanding.put(msg.getRequestID(), request);
+        	}
+        	try {
+        		conn.send(msg);
+        	} catch (KVException e) {
+        		close(e);
+        	}
+        	try {
+        		return request.await(timeout);
+        	} finally {
+        		synchronized(this) {
+        			outstanding.remove(msg.getRequestID());
+        		}
+        	}
+        }
+
+        /**
+         * Read responses until the connection breaks.
+         */
+        @Override
+        public void run() {
+        	try {
+        		while(true) {
+        			KVMessage resp = conn.receive(0);
+        			Outstanding request = null;
+        			synchronized(this) {
+        				request = outstanding.remove(resp.getRequestID());
+        			}
+        			if(request != null)
+        				request.complete(resp, null);
+        		}
+        	} catch (KVException e) {
+        		close(e);
+        	}
+        }
+
+        /**
+         * Close the connection and fail the outstanding requests.
+         */
+        public void close(KVException error) {
+        	ArrayList<Outstanding> failed = null;
+        	synchronized(this) {
+        		closed = true;
+        		failed = new ArrayList<Outstanding>(outstanding.values());
+        		outstanding.clear();
+        	}
+        	conn.close();
+        	for(Outstanding request : failed)
+        		request.complete(null, error);
+        }
+    }
+
+    /**
+     * A request waiting for its response.
+     */
+    private static class Outstanding {
+
+        private CountDownLatch done = new CountDownLatch(1);
+        private KVMessage resp;
+        private KVException error;
+
+        public void complete(KVMessage resp, KVException error) {
+            this.resp = resp;
+            this.error = error;
+            done.countDown();
+        }
+
+        /**
+         * @param timeout milliseconds to wait for the response, 0 without
+         *        limit
+         * @throws KVException the error of the request, or
+         *         ERROR_COULD_NOT_RECEIVE_DATA on timeout or interrupt
+         */
+        public KVMessage await(int timeout) throws KVException {
+        	try {
+        		if(timeout == 0)
+        			done.await();
+        		else if(!done.await(timeout, TimeUnit.MILLISECONDS))
+        			throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        	} catch (InterruptedException e) {
+        		Thread.currentThread().interrupt();
+        		throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        	}
+        	if(error != null)
+        		throw error;
+        	return resp;
+        }
+    }
 }
@@ -0,0 +1,313 @@
+package kvstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * One end of a connection carrying KVMessages, in the wire format chosen
+ * for that connection by the side that opened it:
+ * - XML: a single XML message each way, ended by shutdownOutput()
+ * - FRAMED_XML: any number of XML messages, each prefixed by its length
+ * - BINARY: any number of messages in the binary encoding of KVMessage,
+ *   each prefixed by its length
+ * The accepting side tells them apart from the first byte it receives:
+ * BINARY_MARKER is sent once ahead of the first binary message, the length
+ * of a framed message starts with a 0 byte, and anything else starts a
+ * XML message. Existing XML clients therefore keep working unchanged.
+ */
+public class KVConnection {
+
+    public static final int XML = 0;
+    public static final int FRAMED_XML = 1;
+    public static final int BINARY = 2;
+
+    /* First byte of a connection using the binary encoding */
+    public static final int BINARY_MARKER = 1;
+
+    private Socket sock;
+    private InputStream in;
+    private OutputStream out;
+    private int wire;
+
+    private KVConnection(Socket sock, InputStream in, int wire) throws IOException {
+        this.sock = sock;
+        this.in = in;
+        this.out = sock.getOutputStream();
+        this.wire = wire;
+    }
+
+    /**
+     * Start using a newly connected socket with a wire format.
+     *
+     * @param sock Socket connected to the accepting side
+     * @param wire XML, FRAMED_XML or BINARY
+     * @return the connection
+     * @throws KVException ERROR_COULD_NOT_SEND_DATA if the binary marker
+     *         cannot be sent
+     */
+    public static KVConnection open(Socket sock, int wire) throws KVException {
+    	try {
+    		KVConnection conn = new KVConnection(sock, sock.getInputStream(), wire);
+    		if(wire == BINARY) // sent along with the first message
+    			conn.out.write(BINARY_MARKER);
+    		return conn;
+    	} catch (IOException e) {
+    		throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+    	}
+    }
+
+    /**
+     * Start using an accepted socket, in the wire format the other side
+     * opened it with. Blocks until the first byte is received.
+     *
+     * @param sock accepted Socket
+     * @return the connection
+     * @throws KVException ERROR_COULD_NOT_RECEIVE_DATA if the connection is
+     *         closed before anything is received
+     */
+    public static KVConnection accept(Socket sock) throws KVException {
+    	try {
+    		PushbackInputStream in = new PushbackInputStream(sock.getInputStream());
+    		int first = in.read();
+    		if(first < 0)
+    			throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+    		if(first == BINARY_MARKER)
+    			return new KVConnection(sock, in, BINARY);
+    		in.unread(first);
+    		return new KVConnection(sock, in, KVMessage.isFramed(first) ? FRAMED_XML : XML);
+    	} catch (IOException e) {
+    		throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+    	}
+    }
+
+    /**
+     * Send a message. On a XML connection this ends the output, and
+     * nothing else can be sent. Other connections can be used by several
+     * threads at once.
+     *
+     * @param msg message to send
+     * @throws KVException as KVMessage.sendMessage
+     */
+    public void send(KVMessage msg) throws KVException {
+    	if(wire == XML) {
+    		msg.sendMessage(sock);
+    		return ;
+    	}
+    	synchronized(out) { // messages may be sent by several threads
+    		if(wire == BINARY)
+    			msg.sendBinaryMessage(out);
+    		else
+    			msg.sendFramedMessage(out);
+    	}
+    }
+
+    /**
+     * Receive a message.
+     *
+     * @param timeout milliseconds to wait for it, 0 without limit
+     * @return the message
+     * @throws KVException as the KVMessage(Socket, int) constructor
+     */
+    public KVMessage receive(int timeout) throws KVException {
+    	try {
+    		sock.setSoTimeout(timeout);
+    	} catch (SocketException e) {
+    		throw new KVException(KVConstants.ERROR_COULD_NOT_CREATE_SOCKET);
+    	}
+    	if(wire == BINARY)
+    		return KVMessage.receiveBinaryMessage(in);
+    	else if(wire == FRAMED_XML)
+    		return KVMessage.receiveFramedMessage(in);
+    	else
+    		return new KVMessage(in);
+    }
+
+    /**
+     * Serve the requests of the connection until it is closed. A XML
+     * connection carries a single request, which is served by the calling
+     * thread. The requests of a reusable connection are handed to the
+     * MessageHandler, which services them as jobs of its executor, so a
+     * client may pipeline them. Responses carry the request ID of their
+     * request and are sent as soon as they are ready, possibly out of order.
+     * A reusable connection accepted by a SocketServer is read by a shared
+     * selector loop, so that idle connections hold no thread, and this
+     * returns at once; otherwise the calling thread reads it until it is
+     * closed.
+     * Best effort: a XML request that cannot be parsed is answered with the
+     * error, a reusable connection that breaks is closed, and a request
+     * the executor rejects is answered with ERROR_OVERLOADED. A frame of a
+     * reusable connection that cannot be parsed is answered with
+     * ERROR_INVALID_FORMAT, under its request ID if it can be found, and
+     * the following frames are still served.
+     *
+     * @param dispatcher schedules the requests of reusable connections
+     * @param handler computes the response to a XML request
+     */
+    public void serve(MessageHandler dispatcher, RequestHandler handler) {
+    	if(!isReusable()) {
+    		KVMessage req = null;
+    		try {
+    			req = receive(0);
+    		} catch (KVException e) {
+    			sendQuietly(e.getKVMessage()); // tell the client what went wrong
+    			return ;
+    		}
+    		respond(req, handler.handleRequest(req));
+    		return ;
+    	}
+    	SocketChannel channel = sock.getChannel();
+    	if(channel != null) {
+    		try {
+    			// bytes already taken off the socket, such as a pushed back one
+    			byte[] received = new byte[in.available()];
+    			for(int n = 0; n < received.length; )
+    				n += in.read(received, n, received.length - n);
+    			SelectorLoop.shared().adopt(channel, dispatcher, wire, received);
+    			return ;
+    		} catch (IOException e) {
+    			// no selector, read the connection here
+    		}
+    	}
+    	readRequests(dispatcher);
+    }
+
+    /**
+     * Read the requests of a reusable connection until it is closed, and
+     * hand them to the MessageHandler, as serve.
+     */
+    private void readRequests(MessageHandler dispatcher) {
+    	try {
+    		sock.setSoTimeout(0);
+    		while(true) {
+    			byte[] frame = KVMessage.readFrame(in); // its length is intact
+    			final KVMessage req;
+    			try {
+    				req = wire == BINARY ? KVMessage.fromBinary(frame)
+    						: new KVMessage(new ByteArrayInputStream(frame));
+    			} catch (KVException e) {
+    				KVMessage resp = new KVMessage(KVConstants.RESP, KVConstants.ERROR_INVALID_FORMAT);
+    				resp.setRequestID(KVMessage.peekRequestID(frame, wire == BINARY));
+    				sendQuietly(resp);
+    				continue;
+    			}
+    			try {
+    				dispatcher.handle(req, new MessageHandler.Responder() {
+    					@Override
+    					public void respond(KVMessage resp) {
+    						KVConnection.this.respond(req, resp);
+    					}
+    				});
+    			} catch (RejectedExecutionException e) { // overloaded, fail fast
+    				respond(req, new KVMessage(KVConstants.RESP, KVConstants.ERROR_OVERLOADED));
+    			}
+    		}
+    	} catch (Exception e) {
+    		// closed by the client, or broken
+    	}
+    	close();
+    }
+
+    /**
+     * Send the response to a request. A request without response on a
+     * reusable connection is answered with ERROR_INVALID_FORMAT, so the
+     * client does not wait for it forever.
+     */
+    private void respond(KVMessage req, KVMessage resp) {
+    	if(resp == null) {
+    		if(!isReusable())
+    			return ;
+    		resp = new KVMessage(KVConstants.RESP, KVConstants.ERROR_INVALID_FORMAT);
+    	}
+    	resp.setRequestID(req.getRequestID());
+    	sendQuietly(resp);
+    }
+
+    private void sendQuietly(KVMessage msg) {
+    	try {
+    		send(msg);
+    	} catch (KVException e) {
+    		// nothing can be done
+    	}
+    }
+
+    /**
+     * Whether the connection can carry more than one message each way.
+     *
+     * @return false for XML connections
+     */
+    public boolean isReusable() {
+        return wire != XML;
+    }
+
+    /**
+     * Whether the connection looks usable while idle: it is open, and the
+     * other side has sent nothing, since it only ever answers requests.
+     * If the socket has a channel, it is read once without blocking, so an
+     * EOF sent by a peer that closed the connection is seen. Otherwise that
+     * goes unnoticed, as available() does not count it, and the connection
+     * fails on its next use instead.
+     *
+     * @return true if the connection can be reused
+     */
+    public boolean isHealthy() {
+    	try {
+    		if(!sock.isConnected() || sock.isClosed()
+    				|| sock.isInputShutdown() || sock.isOutputShutdown()
+    				|| in.available() != 0)
+    			return false;
+    		SocketChannel channel = sock.getChannel();
+    		if(channel == null)
+    			return true;
+    		synchronized(channel.blockingLock()) {
+    			channel.configureBlocking(false);
+    			try { // -1 at EOF, and any byte is unexpected
+    				return channel.read(ByteBuffer.allocate(1)) == 0;
+    			} finally {
+    				channel.configureBlocking(true);
+    			}
+    		}
+    	} catch (IOException e) {
+    		return false;
+    	}
+    }
+
+    public int getWire() {
+        return wire;
+    }
+
+    public Socket getSocket() {
+        return sock;
+    }
+
+    /**
+     * Closes the connection.
+     * Best effort, ignores error.
+     */
+    public void close() {
+    	try {
+    		sock.close();
+    	} catch (IOException e) {
+    		// ignore, best effort
+    	}
+    }
+
+    /**
+     * Computes the responses to the requests served on connections.
+     */
+    public interface RequestHandler {
+
+        /**
+         * @param req a request received on a connection
+         * @return the response, or null if there is none
+         */
+        public KVMessage handleRequest(KVMessage req);
+    }
+}
@@ -15,6 +15,11 @@ public class KVConstants {
     public static final String COMMIT   = "commit";
     public static final String ACK      = "ack";
 
+    // batch requests, on many keys at once
+    public static final String MGET_REQ = "mgetreq";
+    public static final String MPUT_REQ = "mputreq";
+    public static final String MDEL_REQ = "mdelreq";
+
     // Timeout value used during 2PC operations
     public static final int TIMEOUT_MILLISECONDS = 2000;
 
@@ -71,6 +76,35 @@ public class KVConstants {
     public static final String ERROR_INVALID_FORMAT =
         "XML Error: Message format incorrect";
 
+    /**
+     * Error message used if a request is turned down because the ThreadPool
+     * that would service it has no room left in its queue.
+     */
+    public static final String ERROR_OVERLOADED =
+        "Server Error: Too many requests";
+
+    /**
+     * Error message used if a server does not support a request type, such
+     * as a MPUT or MDEL sent to a TPC master, which commits a single key per
+     * transaction.
+     */
+    public static final String ERROR_UNSUPPORTED_REQUEST =
+        "Server Error: Request not supported";
+
+    /**
+     * Error message used if a slave cannot make an entry of its TPCLog
+     * durable, so it must not vote or acknowledge a decision on it.
+     */
+    public static final String ERROR_COULD_NOT_LOG =
+        "Server Error: Could not write to the log";
+
+    /**
+     * Error message used if a TPCLog holds a corrupt record before its
+     * tail, so the state of the slave cannot be rebuilt from it.
+     */
+    public static final String ERROR_CORRUPT_LOG =
+        "Server Error: Corrupt log";
+
     /**
      * Error message used if a GET or DEL request is made on a key that does not
      * have a value associated with it.
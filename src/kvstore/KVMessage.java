@@ -4,10 +4,15 @@ import static kvstore.KVConstants.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
@@ -15,9 +20,6 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  * This is the object that is used to generate the XML based messages
@@ -29,9 +31,46 @@ public class KVMessage implements Serializable {
     private String key;
     private String value;
     private String message;
+    private long txnID;
+    private long requestID;
+    private Map<String, String> batch;
 
     public static final long serialVersionUID = 6473128480951955693L;
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /* Largest framed message accepted, in bytes; must stay below 16MB */
+    public static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+
+    /* Message types in the binary encoding, by code. Only append to it! */
+    private static final String[] BINARY_TYPES = {
+        KVConstants.PUT_REQ, KVConstants.GET_REQ, KVConstants.DEL_REQ,
+        KVConstants.RESP, KVConstants.REGISTER, KVConstants.READY,
+        KVConstants.ABORT, KVConstants.COMMIT, KVConstants.ACK,
+        KVConstants.MGET_REQ, KVConstants.MPUT_REQ, KVConstants.MDEL_REQ
+    };
+
+    /* Elements read from a XML message, in the order parse stores them */
+    private static final String[] XML_FIELDS = {
+        "Key", "Value", "Message", "TxnID", "RequestID"
+    };
+
+    /* Creates the pull parsers reading XML messages; safe to share once set up */
+    private static final XMLInputFactory XML_INPUT = XMLInputFactory.newInstance();
+    static {
+        XML_INPUT.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        XML_INPUT.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /* Bits for the fields present in the binary encoding */
+    private static final int FIELD_KEY = 1;
+    private static final int FIELD_VALUE = 2;
+    private static final int FIELD_MESSAGE = 4;
+    private static final int FIELD_TXN_ID = 8;
+    private static final int FIELD_REQUEST_ID = 16;
+    private static final int FIELD_BATCH = 32;
+
     /**
      * Construct KVMessage with only a type.
      *
@@ -75,94 +114,167 @@ public class KVMessage implements Serializable {
      *         KVConstants.java for possible KVException messages.
      */
     public KVMessage(Socket sock, int timeout) throws KVException {
+    	InputStream in = null;
     	try {
 			sock.setSoTimeout(timeout); // set Timeout
-			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-	    	DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-	    	Document doc = dBuilder.parse(new NoCloseInputStream(sock.getInputStream()));
-	    	
-	    	Element root = doc.getDocumentElement();
-	    	
-	    	root.normalize(); // normalization is recommended
-	    	
-	    	msgType = root.getAttribute("type");
-	    	if(msgType.equals(KVConstants.PUT_REQ)) { // put
-	    		key = doc.getElementsByTagName("Key").item(0).getTextContent();
-	    		value = doc.getElementsByTagName("Value").item(0).getTextContent();
-	    		
-	    		if(key == null || value == null || key.length() == 0 || value.length() == 0)
-	    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	    		
-	    	} else
-	    	if(msgType.equals(KVConstants.GET_REQ)) { // get
-	    		key = doc.getElementsByTagName("Key").item(0).getTextContent();
-	    		
-	    		if(key == null || key.length() == 0)
-	    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	    		
-	    	} else
-	    	if(msgType.equals(KVConstants.DEL_REQ)) { // del
-	    		key = doc.getElementsByTagName("Key").item(0).getTextContent();
-	    		
-	    		if(key == null || key.length() == 0)
-	    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	    		
-	    	} else
-	    	if(msgType.equals(KVConstants.REGISTER)) { // register
-	    		message = doc.getElementsByTagName("Message").item(0).getTextContent();
-	    		
-	    		if(message == null || !message.contains("@") || !message.contains(":"))
-	    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	    	} else
-	    	if(msgType.equals(KVConstants.READY)) { // ready vote
-	    		// do nothing
-		    } else
-		    if(msgType.equals(KVConstants.ABORT)) { // abort vote || abort decision
-		    	if(doc.getElementsByTagName("Message").getLength() > 0) { // abort vote
-		    		message = doc.getElementsByTagName("Message").item(0).getTextContent();
-		    		if(message == null)
-		    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-		    	}
-		    	// otherwise abort decision
-		    } else
-		    if(msgType.equals(KVConstants.COMMIT)) { // commit decision
-		    	// do nothing
-			} else
-			if(msgType.equals(KVConstants.ACK)) { // ack
-			    // do nothing
-			} else
-	    	if(msgType.equals(KVConstants.RESP)) { // response
-	    		if(doc.getElementsByTagName("Message").getLength() > 0)
-	    			message = doc.getElementsByTagName("Message").item(0).getTextContent();
-	    		if(doc.getElementsByTagName("Key").getLength() > 0)
-	    			key = doc.getElementsByTagName("Key").item(0).getTextContent();
-	    		if(doc.getElementsByTagName("Value").getLength() > 0)
-	    			value = doc.getElementsByTagName("Value").item(0).getTextContent();
-	    		if(message != null) {
-	    			if(key != null || value != null)
-	    				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	    		} else {
-	    			if(key == null || value == null || key.length() == 0 || value.length() == 0)
-	    				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	    		}
-	    	} else
-	    		// no such type
-	    		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-		} catch (SocketTimeoutException e) { // Exception for Timeout
-    		throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
-    	} catch (SocketException e) { // Exception when calling setSoTime()
+			in = sock.getInputStream();
+		} catch (SocketException e) { // Exception when calling setSoTime()
 			throw new KVException(KVConstants.ERROR_COULD_NOT_CREATE_SOCKET);
-		} catch (ParserConfigurationException e) {
-			throw new KVException(KVConstants.ERROR_PARSER);
-		} catch (SAXException e) {
-			throw new KVException(KVConstants.ERROR_PARSER);
 		} catch (IOException e) {
 			throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
-		} catch (KVException e) {
-			throw e;
-		} catch(Exception e) { // any other exceptions
-			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
 		}
+    	parse(in);
+    }
+
+    /**
+     * Construct KVMessage from an InputStream holding a single XML message,
+     * which ends at the end of the stream. Any read timeout has to be set
+     * on the underlying socket by the caller.
+     *
+     * @param  in InputStream to receive serialized KVMessage through
+     * @throws KVException if we fail to create a valid KVMessage. Please see
+     *         KVConstants.java for possible KVException messages.
+     */
+    public KVMessage(InputStream in) throws KVException {
+    	parse(in);
+    }
+
+    /**
+     * Parse a XML message from the InputStream into this KVMessage. The
+     * message is read with a pull parser, straight into the fields: the
+     * type attribute of the root element, the text of the first Key,
+     * Value, Message, TxnID and RequestID elements, and the Key and Value of
+     * each KVPair of the Batch element of a batch message. The whole
+     * document is read, so it has to be well-formed.
+     *
+     * @param  in InputStream holding the message, not closed
+     * @throws KVException if the message is not a valid KVMessage
+     */
+    private void parse(InputStream in) throws KVException {
+    	XMLStreamReader reader = null;
+    	try {
+    		reader = XML_INPUT.createXMLStreamReader(new NoCloseInputStream(in));
+    		String[] texts = new String[XML_FIELDS.length];
+    		String[] pair = null; // key and value of the KVPair being read
+    		String[] target = null; // where the text being read goes
+    		StringBuilder text = null; // text of the element being read
+    		int slot = 0, depth = 0, textDepth = 0, batchDepth = 0, pairDepth = 0;
+    		while(reader.hasNext()) {
+    			switch(reader.next()) {
+    			case XMLStreamConstants.START_ELEMENT:
+    				++ depth;
+    				String name = reader.getLocalName();
+    				if(depth == 1) { // root
+    					msgType = reader.getAttributeValue(null, "type");
+    					if(msgType == null) msgType = "";
+    				} else
+    				if(text != null) {
+    					// inside an element being read, its text includes this one
+    				} else
+    				if(batchDepth == 0 && depth == 2 && batch == null && "Batch".equals(name)) {
+    					batch = new LinkedHashMap<String, String>();
+    					batchDepth = depth;
+    				} else
+    				if(batchDepth > 0) { // only KVPairs count in a Batch
+    					if(pair == null && depth == batchDepth + 1 && "KVPair".equals(name)) {
+    						pair = new String[2];
+    						pairDepth = depth;
+    					} else
+    					if(pair != null && depth == pairDepth + 1) {
+    						slot = "Key".equals(name) ? 0 : "Value".equals(name) ? 1 : -1;
+    						if(slot >= 0 && pair[slot] == null) {
+    							target = pair;
+    							text = new StringBuilder();
+    							textDepth = depth;
+    						}
+    					}
+    				} else {
+    					slot = xmlField(name);
+    					if(slot >= 0 && texts[slot] == null) {
+    						target = texts;
+    						text = new StringBuilder();
+    						textDepth = depth;
+    					}
+    				}
+    				break;
+    			case XMLStreamConstants.END_ELEMENT:
+    				if(text != null) {
+    					if(depth == textDepth) {
+    						target[slot] = text.toString();
+    						text = null;
+    					}
+    				} else
+    				if(pair != null && depth == pairDepth) {
+    					if(pair[0] == null) // a pair needs its key
+    						throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    					batch.put(pair[0], pair[1]);
+    					pair = null;
+    				} else
+    				if(depth == batchDepth) {
+    					batchDepth = 0;
+    				}
+    				-- depth;
+    				break;
+    			case XMLStreamConstants.CHARACTERS:
+    			case XMLStreamConstants.CDATA:
+    			case XMLStreamConstants.SPACE:
+    				if(text != null)
+    					text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+    				break;
+    			default:
+    				break;
+    			}
+    		}
+    		key = texts[0];
+    		value = texts[1];
+    		message = texts[2];
+    		if(texts[3] != null) // 2PC transaction
+    			txnID = Long.parseLong(texts[3].trim());
+    		if(texts[4] != null) // pipelined connection
+    			requestID = Long.parseLong(texts[4].trim());
+    	} catch (XMLStreamException e) {
+    		throw new KVException(xmlStreamError(e));
+    	} catch (KVException e) {
+    		throw e;
+    	} catch(Exception e) { // any other exceptions
+    		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    	} finally {
+    		if(reader != null) {
+    			try {
+    				reader.close();
+    			} catch (XMLStreamException e) {
+    				// ignore, the stream is left open
+    			}
+    		}
+    	}
+    	validate();
+    }
+
+    private static int xmlField(String name) {
+    	for(int i = 0; i < XML_FIELDS.length; ++ i)
+    		if(XML_FIELDS[i].equals(name))
+    			return i;
+    	return -1;
+    }
+
+    /**
+     * Map an error of the pull parser to the error the DOM parser gave:
+     * failures to read the stream are reported by the parser wrapped in
+     * its own exception.
+     */
+    private static String xmlStreamError(XMLStreamException e) {
+    	Throwable t = e;
+    	for(int i = 0; t != null && i < 8; ++ i) {
+    		if(t instanceof SocketTimeoutException) // Exception for Timeout
+    			return KVConstants.ERROR_SOCKET_TIMEOUT;
+    		if(t instanceof IOException)
+    			return KVConstants.ERROR_COULD_NOT_RECEIVE_DATA;
+    		Throwable next = t.getCause();
+    		if(next == null && t instanceof XMLStreamException)
+    			next = ((XMLStreamException) t).getNestedException();
+    		t = next;
+    	}
+    	return KVConstants.ERROR_PARSER;
     }
 
     /**
@@ -175,6 +287,10 @@ public class KVMessage implements Serializable {
         key = kvm.getKey();
         value = kvm.getValue();
         message = kvm.getMessage();
+        txnID = kvm.getTxnID();
+        requestID = kvm.getRequestID();
+        if(kvm.getBatch() != null)
+            batch = new LinkedHashMap<String, String>(kvm.getBatch());
     }
 
     /**
@@ -185,83 +301,79 @@ public class KVMessage implements Serializable {
      * @throws KVException with ERROR_INVALID_FORMAT or ERROR_PARSER
      */
     public String toXML() throws KVException {
-    	DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder docBuilder = null;
-		try {
-			docBuilder = docFactory.newDocumentBuilder();
-		}catch (ParserConfigurationException e) {
-			throw new KVException(KVConstants.ERROR_PARSER);
-		} 
-		Document doc = docBuilder.newDocument();
-
-		Element msg = doc.createElement("KVMessage");
-		doc.appendChild(msg);
-			
+    	XMLBuffer buf = XMLBuffer.get();
+    	try {
+    		writeXML(buf);
+    		return buf.toString(0);
+    	} finally {
+    		buf.release();
+    	}
+    }
+
+    /**
+     * Write the XML representation of this message in UTF-8. The output is
+     * the one the DOM Transformer with indentation used to print: the
+     * declaration, then the root and each element on its own line, elements
+     * indented by 4 spaces, empty elements self-closed. In text, &amp;,
+     * &lt; and &gt; are escaped, and so are as character references the
+     * control characters but tab and newline, U+007F-U+009F and characters
+     * outside of the BMP.
+     *
+     * @param  buf buffer to append to
+     * @throws KVException ERROR_INVALID_FORMAT with the same checks as the
+     *         DOM version, ERROR_PARSER for a high surrogate not followed by
+     *         a low surrogate
+     */
+    private void writeXML(XMLBuffer buf) throws KVException {
 		if(msgType == null)
 			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
 		
-		msg.setAttribute("type", msgType);
-		
+		String[] names = new String[4];
+		String[] texts = new String[4];
+		int count = 0;
+		boolean batchValues = false; // whether the batch is written with values
 		if(msgType.equals(KVConstants.RESP)) {
+			if(batch != null) { // resp of mgetreq
+    			if(key != null || value != null || message != null)
+    				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    			batchValues = true;
+    		} else
 			if(message != null) { // only message
     			if(key != null || value != null)
     				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-    			Element message = doc.createElement("Message");
-    			message.appendChild(doc.createTextNode(this.message));
-    			msg.appendChild(message);
+    			names[count] = "Message"; texts[count++] = message;
     		} else { // resp of getreq
     			if(key == null || value == null)
     				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-    			Element key = doc.createElement("Key");
-	    		key.appendChild(doc.createTextNode(this.key));
-	    		msg.appendChild(key);
-	    		Element value = doc.createElement("Value");
-	    		value.appendChild(doc.createTextNode(this.value));
-	    		msg.appendChild(value);
+    			names[count] = "Key"; texts[count++] = key;
+    			names[count] = "Value"; texts[count++] = value;
     		}
 		} else {
 			if(msgType.equals(KVConstants.PUT_REQ)) { // put
-				if(key == null)
+				if(key == null || value == null)
 	    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-				
-				Element key = doc.createElement("Key");
-	    		key.appendChild(doc.createTextNode(this.key));
-	    		msg.appendChild(key);
-	
-	    		if(value == null)
-	    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	    		Element value = doc.createElement("Value");
-	    		value.appendChild(doc.createTextNode(this.value));
-	    		msg.appendChild(value);
-			} else
-			if(msgType.equals(KVConstants.GET_REQ)) { // get
-				if(key == null)
-	    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-				
-				Element key = doc.createElement("Key");
-	    		key.appendChild(doc.createTextNode(this.key));
-	    		msg.appendChild(key);
+				names[count] = "Key"; texts[count++] = key;
+				names[count] = "Value"; texts[count++] = value;
 			} else
-			if(msgType.equals(KVConstants.DEL_REQ)) { // del
+			if(msgType.equals(KVConstants.GET_REQ) // get
+				|| msgType.equals(KVConstants.DEL_REQ)) { // del
 				if(key == null)
 	    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-				
-				Element key = doc.createElement("Key");
-	    		key.appendChild(doc.createTextNode(this.key));
-	    		msg.appendChild(key);
+				names[count] = "Key"; texts[count++] = key;
 			} else
 			if(msgType.equals(KVConstants.REGISTER)) { // register
 				if(message == null)
 					throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-				Element message = doc.createElement("Message");
-    			message.appendChild(doc.createTextNode(this.message));
-    			msg.appendChild(message);
+				names[count] = "Message"; texts[count++] = message;
+			} else
+			if(isBatchType(msgType)) { // mget, mput, mdel
+				if(batch == null)
+					throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+				batchValues = msgType.equals(KVConstants.MPUT_REQ);
 			} else
 			if(msgType.equals(KVConstants.ABORT)) { // abort vote || abort decision
 				if(message != null) {
-					Element message = doc.createElement("Message");
-	    			message.appendChild(doc.createTextNode(this.message));
-	    			msg.appendChild(message);
+					names[count] = "Message"; texts[count++] = message;
 				}
 			} else
 			if(msgType.equals(KVConstants.READY) // ready vote
@@ -271,17 +383,79 @@ public class KVMessage implements Serializable {
 			} else
 				// invalid request type
 				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+			
+			if(txnID != 0 && isTPCType(msgType)) { // 2PC transaction
+				names[count] = "TxnID"; texts[count++] = Long.toString(txnID);
+			}
 		}
-		String xml = null;
-		try {
-			xml = printDoc(doc);
-		} catch (Exception e) {
-			throw new KVException(KVConstants.ERROR_PARSER);
+		if(requestID != 0) { // pipelined connection
+			names[count] = "RequestID"; texts[count++] = Long.toString(requestID);
 		}
-        return xml;
+		
+		// msgType is one of the constants, nothing to escape
+		buf.ascii("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
+		buf.ascii(LINE_SEPARATOR);
+		buf.ascii("<KVMessage type=\"");
+		buf.ascii(msgType);
+		if(count == 0 && !(isBatchType(msgType) || batchValues)) {
+			buf.ascii("\"/>");
+		} else {
+			buf.ascii("\">");
+			buf.ascii(LINE_SEPARATOR);
+			for(int i = 0; i < count; ++ i)
+				writeElementXML(buf, "    ", names[i], texts[i]);
+			if(isBatchType(msgType) || batchValues)
+				writeBatchXML(buf, batchValues);
+			buf.ascii("</KVMessage>");
+		}
+		buf.ascii(LINE_SEPARATOR);
     }
 
 
+    /**
+     * Write the batch as a Batch element holding a KVPair element for each
+     * pair, with its Key and, if withValues, its Value.
+     */
+    private void writeBatchXML(XMLBuffer buf, boolean withValues) throws KVException {
+    	if(batch.isEmpty()) {
+    		buf.ascii("    <Batch/>");
+    		buf.ascii(LINE_SEPARATOR);
+    		return ;
+    	}
+    	buf.ascii("    <Batch>");
+    	buf.ascii(LINE_SEPARATOR);
+    	for(Map.Entry<String, String> e : batch.entrySet()) {
+    		if(e.getKey() == null || (withValues && e.getValue() == null))
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		buf.ascii("        <KVPair>");
+    		buf.ascii(LINE_SEPARATOR);
+    		writeElementXML(buf, "            ", "Key", e.getKey());
+    		if(withValues)
+    			writeElementXML(buf, "            ", "Value", e.getValue());
+    		buf.ascii("        </KVPair>");
+    		buf.ascii(LINE_SEPARATOR);
+    	}
+    	buf.ascii("    </Batch>");
+    	buf.ascii(LINE_SEPARATOR);
+    }
+
+    private static void writeElementXML(XMLBuffer buf, String indent, String name, String text)
+    		throws KVException {
+    	buf.ascii(indent);
+    	buf.ascii("<");
+    	buf.ascii(name);
+    	if(text.length() == 0) {
+    		buf.ascii("/>");
+    	} else {
+    		buf.ascii(">");
+    		buf.text(text);
+    		buf.ascii("</");
+    		buf.ascii(name);
+    		buf.ascii(">");
+    	}
+    	buf.ascii(LINE_SEPARATOR);
+    }
+
     /**
      * Send serialized version of this KVMessage over the network.
      * You must call sock.shutdownOutput() in order to flush the OutputStream
@@ -294,15 +468,398 @@ public class KVMessage implements Serializable {
      *         ERROR_COULD_NOT_SEND_DATA
      */
     public void sendMessage(Socket sock) throws KVException {
+    	XMLBuffer buf = XMLBuffer.get();
 		try {
-			PrintWriter writer = new PrintWriter(sock.getOutputStream());
-			writer.print(toXML());  
-	        writer.flush();
-	        // NOTE: We DO NOT close writer here! See description of sock.getOutputStream()
+			writeXML(buf);
+			OutputStream out = sock.getOutputStream();
+			buf.writeTo(out, 0);
+	        out.flush();
+	        // NOTE: We DO NOT close the stream here! See description of sock.getOutputStream()
 	        sock.shutdownOutput();
 		} catch (IOException e) {
 			throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
-		}  
+		} finally {
+			buf.release();
+		}
+    }
+
+    /**
+     * Send this KVMessage as a frame: the length of the XML in bytes as a
+     * 4-byte big-endian int, followed by the XML in UTF-8. The end of the
+     * message is given by its length, so the stream stays open and the
+     * connection can carry further messages in both directions.
+     *
+     * @param  out OutputStream of the connection, flushed but not closed
+     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_PARSER, or
+     *         ERROR_COULD_NOT_SEND_DATA
+     */
+    public void sendFramedMessage(OutputStream out) throws KVException {
+    	XMLBuffer buf = XMLBuffer.get();
+    	try {
+    		buf.skip(4); // room for the length
+    		writeXML(buf);
+    		int length = buf.length() - 4;
+    		if(length > MAX_FRAME_SIZE)
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		buf.setInt(0, length);
+    		buf.writeTo(out, 0); // one write per message
+    		out.flush();
+    	} catch (IOException e) {
+    		throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+    	} finally {
+    		buf.release();
+    	}
+    }
+
+    /**
+     * Receive a KVMessage sent by sendFramedMessage. Any read timeout has
+     * to be set on the underlying socket by the caller.
+     *
+     * @param  in InputStream of the connection
+     * @return the message
+     * @throws KVException ERROR_COULD_NOT_RECEIVE_DATA if the connection is
+     *         closed, ERROR_SOCKET_TIMEOUT, ERROR_INVALID_FORMAT if the frame
+     *         length is out of range, or any error of parsing the XML
+     */
+    public static KVMessage receiveFramedMessage(InputStream in) throws KVException {
+    	return new KVMessage(new ByteArrayInputStream(readFrame(in)));
+    }
+
+    /**
+     * Send this KVMessage in the binary encoding (see toBinary), framed
+     * like sendFramedMessage.
+     *
+     * @param  out OutputStream of the connection, flushed but not closed
+     * @throws KVException with ERROR_INVALID_FORMAT or
+     *         ERROR_COULD_NOT_SEND_DATA
+     */
+    public void sendBinaryMessage(OutputStream out) throws KVException {
+    	writeFrame(out, toBinary());
+    }
+
+    /**
+     * Receive a KVMessage sent by sendBinaryMessage. Any read timeout has
+     * to be set on the underlying socket by the caller.
+     *
+     * @param  in InputStream of the connection
+     * @return the message
+     * @throws KVException as receiveFramedMessage, or any error of fromBinary
+     */
+    public static KVMessage receiveBinaryMessage(InputStream in) throws KVException {
+    	return fromBinary(readFrame(in));
+    }
+
+    /**
+     * Generate the binary representation of this message. It holds the
+     * same fields as the XML one, validated the same way:
+     * the index of the type in BINARY_TYPES as a byte, a byte with a bit
+     * for each field present (FIELD_*), then the key, value and message
+     * present, each as a 4-byte length followed by UTF-8, the 8-byte
+     * transaction and request IDs if present, and the batch if present: a
+     * 4-byte count of pairs, each a key and, but in MGET and MDEL requests,
+     * a value. Integers are big-endian.
+     *
+     * @return the binary representation of this KVMessage
+     * @throws KVException with ERROR_INVALID_FORMAT
+     */
+    public byte[] toBinary() throws KVException {
+    	int type = binaryType(msgType);
+    	if(type < 0)
+    		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    	int fields = 0;
+    	if(isBatchType(msgType)) { // mget, mput, mdel
+    		if(batch == null)
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		fields = FIELD_BATCH;
+    	} else
+    	if(msgType.equals(KVConstants.RESP)) {
+    		if(batch != null) { // resp of mgetreq
+    			if(key != null || value != null || message != null)
+    				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    			fields = FIELD_BATCH;
+    		} else
+    		if(message != null) { // only message
+    			if(key != null || value != null)
+    				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    			fields = FIELD_MESSAGE;
+    		} else // resp of getreq
+    			fields = FIELD_KEY | FIELD_VALUE;
+    	} else
+    	if(msgType.equals(KVConstants.PUT_REQ)) // put
+    		fields = FIELD_KEY | FIELD_VALUE;
+    	else
+    	if(msgType.equals(KVConstants.GET_REQ) || msgType.equals(KVConstants.DEL_REQ)) // get, del
+    		fields = FIELD_KEY;
+    	else
+    	if(msgType.equals(KVConstants.REGISTER)) // register
+    		fields = FIELD_MESSAGE;
+    	else
+    	if(msgType.equals(KVConstants.ABORT) && message != null) // abort vote
+    		fields = FIELD_MESSAGE;
+    	if(((fields & FIELD_KEY) != 0 && key == null)
+    		|| ((fields & FIELD_VALUE) != 0 && value == null)
+    		|| ((fields & FIELD_MESSAGE) != 0 && message == null))
+    		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    	if(txnID != 0 && isTPCType(msgType)) // 2PC transaction
+    		fields |= FIELD_TXN_ID;
+    	if(requestID != 0) // pipelined connection
+    		fields |= FIELD_REQUEST_ID;
+
+    	try {
+    		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    		DataOutputStream data = new DataOutputStream(bytes);
+    		data.writeByte(type);
+    		data.writeByte(fields);
+    		if((fields & FIELD_KEY) != 0) writeString(data, key);
+    		if((fields & FIELD_VALUE) != 0) writeString(data, value);
+    		if((fields & FIELD_MESSAGE) != 0) writeString(data, message);
+    		if((fields & FIELD_TXN_ID) != 0) data.writeLong(txnID);
+    		if((fields & FIELD_REQUEST_ID) != 0) data.writeLong(requestID);
+    		if((fields & FIELD_BATCH) != 0) {
+    			boolean withValues = !KVConstants.MGET_REQ.equals(msgType)
+    					&& !KVConstants.MDEL_REQ.equals(msgType);
+    			data.writeInt(batch.size());
+    			for(Map.Entry<String, String> e : batch.entrySet()) {
+    				if(e.getKey() == null || (withValues && e.getValue() == null))
+    					throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    				writeString(data, e.getKey());
+    				if(withValues) writeString(data, e.getValue());
+    			}
+    		}
+    		return bytes.toByteArray();
+    	} catch (IOException e) { // never thrown by a byte array
+    		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    	}
+    }
+
+    /**
+     * Construct a KVMessage from its binary representation, see toBinary.
+     * Fields are validated as when parsing XML.
+     *
+     * @param  binary the binary representation
+     * @return the message
+     * @throws KVException ERROR_PARSER if the data is truncated or malformed,
+     *         ERROR_INVALID_FORMAT if it is not a valid KVMessage
+     */
+    public static KVMessage fromBinary(byte[] binary) throws KVException {
+    	KVMessage kvm = null;
+    	try {
+    		DataInputStream data = new DataInputStream(new ByteArrayInputStream(binary));
+    		int type = data.readUnsignedByte();
+    		int fields = data.readUnsignedByte();
+    		if(type >= BINARY_TYPES.length)
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		kvm = new KVMessage(BINARY_TYPES[type]);
+    		if((fields & FIELD_KEY) != 0) kvm.key = readString(data);
+    		if((fields & FIELD_VALUE) != 0) kvm.value = readString(data);
+    		if((fields & FIELD_MESSAGE) != 0) kvm.message = readString(data);
+    		if((fields & FIELD_TXN_ID) != 0) kvm.txnID = data.readLong();
+    		if((fields & FIELD_REQUEST_ID) != 0) kvm.requestID = data.readLong();
+    		if((fields & FIELD_BATCH) != 0) {
+    			boolean withValues = !KVConstants.MGET_REQ.equals(kvm.msgType)
+    					&& !KVConstants.MDEL_REQ.equals(kvm.msgType);
+    			int count = data.readInt();
+    			if(count < 0 || count > data.available())
+    				throw new EOFException();
+    			kvm.batch = new LinkedHashMap<String, String>();
+    			for(int i = 0; i < count; ++ i) {
+    				String batchKey = readString(data);
+    				kvm.batch.put(batchKey, withValues ? readString(data) : null);
+    			}
+    		}
+    		if(data.available() > 0) // trailing garbage
+    			throw new KVException(KVConstants.ERROR_PARSER);
+    	} catch (IOException e) { // truncated
+    		throw new KVException(KVConstants.ERROR_PARSER);
+    	}
+    	kvm.validate();
+    	return kvm;
+    }
+
+    /**
+     * Check the fields of a received message, and drop the fields that its
+     * type does not use.
+     *
+     * @throws KVException ERROR_INVALID_FORMAT if the message is not valid
+     */
+    private void validate() throws KVException {
+    	if(binaryType(msgType) < 0) // no such type
+    		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    	if(isBatchType(msgType)) { // mget, mput, mdel
+    		boolean withValues = msgType.equals(KVConstants.MPUT_REQ);
+    		validateBatch(withValues);
+    		if(!withValues)
+    			for(Map.Entry<String, String> e : batch.entrySet())
+    				e.setValue(null);
+    		key = value = message = null;
+    	} else
+    	if(msgType.equals(KVConstants.RESP) && batch != null) { // response to mget
+    		if(key != null || value != null || message != null)
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		validateBatch(true);
+    	} else
+    	if(msgType.equals(KVConstants.PUT_REQ)) { // put
+    		if(key == null || value == null || key.length() == 0 || value.length() == 0)
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		message = null;
+    	} else
+    	if(msgType.equals(KVConstants.GET_REQ) || msgType.equals(KVConstants.DEL_REQ)) { // get, del
+    		if(key == null || key.length() == 0)
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		value = message = null;
+    	} else
+    	if(msgType.equals(KVConstants.REGISTER)) { // register
+    		if(message == null || !message.contains("@") || !message.contains(":"))
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		key = value = null;
+    	} else
+    	if(msgType.equals(KVConstants.RESP)) { // response
+    		if(message != null) {
+    			if(key != null || value != null)
+    				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		} else {
+    			if(key == null || value == null || key.length() == 0 || value.length() == 0)
+    				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		}
+    	} else { // ready, abort, commit, ack
+    		key = value = null;
+    		if(!msgType.equals(KVConstants.ABORT))
+    			message = null;
+    	}
+    	if(!isTPCType(msgType))
+    		txnID = 0;
+    	if(!isBatchType(msgType) && !msgType.equals(KVConstants.RESP))
+    		batch = null;
+    }
+
+    /**
+     * Check the batch of a received message: it has to hold at least one
+     * pair in a request, and keys, and values if used, cannot be empty.
+     */
+    private void validateBatch(boolean withValues) throws KVException {
+    	if(batch == null || (batch.isEmpty() && !msgType.equals(KVConstants.RESP)))
+    		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    	for(Map.Entry<String, String> e : batch.entrySet()) {
+    		if(e.getKey() == null || e.getKey().length() == 0)
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		if(withValues && (e.getValue() == null || e.getValue().length() == 0))
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    	}
+    }
+
+    private static int binaryType(String msgType) {
+    	for(int i = 0; i < BINARY_TYPES.length; ++ i)
+    		if(BINARY_TYPES[i].equals(msgType))
+    			return i;
+    	return -1;
+    }
+
+    private static void writeString(DataOutputStream data, String str) throws IOException {
+    	byte[] bytes = str.getBytes("UTF-8");
+    	data.writeInt(bytes.length);
+    	data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+    	int length = data.readInt();
+    	if(length < 0 || length > data.available())
+    		throw new EOFException();
+    	byte[] bytes = new byte[length];
+    	data.readFully(bytes);
+    	return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Write a frame: the length of the body as a 4-byte big-endian int,
+     * followed by the body, in a single write.
+     */
+    private static void writeFrame(OutputStream out, byte[] body) throws KVException {
+    	if(body.length > MAX_FRAME_SIZE)
+    		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    	byte[] frame = new byte[4 + body.length]; // one write per message
+    	frame[0] = (byte) (body.length >>> 24);
+    	frame[1] = (byte) (body.length >>> 16);
+    	frame[2] = (byte) (body.length >>> 8);
+    	frame[3] = (byte) body.length;
+    	System.arraycopy(body, 0, frame, 4, body.length);
+    	try {
+    		out.write(frame);
+    		out.flush();
+    	} catch (IOException e) {
+    		throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+    	}
+    }
+
+    /**
+     * Read the body of a frame written by writeFrame.
+     *
+     * @throws KVException as receiveFramedMessage, but for the errors of
+     *         parsing its body
+     */
+    static byte[] readFrame(InputStream in) throws KVException {
+    	try {
+    		DataInputStream data = new DataInputStream(in);
+    		int length = data.readInt();
+    		if(length <= 0 || length > MAX_FRAME_SIZE)
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    		byte[] body = new byte[length];
+    		data.readFully(body);
+    		return body;
+    	} catch (SocketTimeoutException e) {
+    		throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+    	} catch (IOException e) { // includes EOF
+    		throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+    	}
+    }
+
+    /**
+     * Find the request ID of a frame that cannot be parsed, so that a
+     * pipelined connection can answer it with an error and go on. Best
+     * effort: the fields ahead of the ID have to be intact.
+     *
+     * @param  body body of a frame
+     * @param  binary whether it is in the binary encoding, else XML
+     * @return the request ID, 0 if it cannot be found
+     */
+    static long peekRequestID(byte[] body, boolean binary) {
+    	if(!binary) {
+    		String xml = new String(body, UTF_8);
+    		int start = xml.indexOf("<RequestID>"), end = xml.indexOf("</RequestID>");
+    		if(start < 0 || end < start)
+    			return 0;
+    		try {
+    			return Long.parseLong(xml.substring(start + "<RequestID>".length(), end).trim());
+    		} catch (NumberFormatException e) {
+    			return 0;
+    		}
+    	}
+    	try {
+    		DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+    		data.readUnsignedByte(); // type
+    		int fields = data.readUnsignedByte();
+    		if((fields & FIELD_REQUEST_ID) == 0)
+    			return 0;
+    		if((fields & FIELD_KEY) != 0) readString(data);
+    		if((fields & FIELD_VALUE) != 0) readString(data);
+    		if((fields & FIELD_MESSAGE) != 0) readString(data);
+    		if((fields & FIELD_TXN_ID) != 0) data.readLong();
+    		return data.readLong();
+    	} catch (IOException e) { // truncated
+    		return 0;
+    	}
+    }
+
+    /**
+     * Whether a connection carries framed messages, given the first byte
+     * received on it. A frame starts with its length, whose high byte is
+     * always 0 since frames are smaller than 16MB, while a XML message
+     * never starts with a 0 byte.
+     *
+     * @param  firstByte first byte read from the connection
+     * @return true if the connection uses sendFramedMessage
+     */
+    public static boolean isFramed(int firstByte) {
+    	return firstByte == 0;
     }
 
     public String getKey() {
@@ -333,6 +890,77 @@ public class KVMessage implements Serializable {
         return msgType;
     }
 
+    /**
+     * Get the ID of the 2PC transaction this message belongs to. Only PUT
+     * and DEL requests and COMMIT and ABORT decisions sent by the master
+     * carry one.
+     *
+     * @return the transaction ID, or 0 if the message has none
+     */
+    public long getTxnID() {
+        return txnID;
+    }
+
+    public void setTxnID(long txnID) {
+        this.txnID = txnID;
+    }
+
+    /**
+     * Get the ID a client gave to a request on a pipelined connection. The
+     * response to the request carries the same ID, since responses may
+     * come back in any order.
+     *
+     * @return the request ID, or 0 if the message has none
+     */
+    public long getRequestID() {
+        return requestID;
+    }
+
+    public void setRequestID(long requestID) {
+        this.requestID = requestID;
+    }
+
+    /**
+     * Get the keys, and values, of a batch message: the keys of a MGET or
+     * MDEL request, the pairs of a MPUT request, or the pairs found by a
+     * MGET request in its response.
+     *
+     * @return the batch in order, with null values in MGET and MDEL
+     *         requests, or null if the message is not a batch
+     */
+    public Map<String, String> getBatch() {
+        return batch;
+    }
+
+    public void setBatch(Map<String, String> batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * Whether a type is one of the batch requests.
+     *
+     * @param msgType type of a KVMessage
+     * @return true for MGET, MPUT and MDEL requests
+     */
+    public static boolean isBatchType(String msgType) {
+        return KVConstants.MGET_REQ.equals(msgType)
+            || KVConstants.MPUT_REQ.equals(msgType)
+            || KVConstants.MDEL_REQ.equals(msgType);
+    }
+
+    /**
+     * Whether messages of a type may carry a 2PC transaction ID.
+     *
+     * @param msgType type of a KVMessage
+     * @return true for PUT and DEL requests and COMMIT and ABORT decisions
+     */
+    public static boolean isTPCType(String msgType) {
+        return KVConstants.PUT_REQ.equals(msgType)
+            || KVConstants.DEL_REQ.equals(msgType)
+            || KVConstants.COMMIT.equals(msgType)
+            || KVConstants.ABORT.equals(msgType);
+    }
+
 
     @Override
     public String toString() {
@@ -344,6 +972,117 @@ public class KVMessage implements Serializable {
         }
     }
 
+    /*
+     * Growable byte buffer the XML of outgoing messages is written to in
+     * UTF-8. Each thread reuses its own, unless it grew past
+     * MAX_REUSED_BUFFER for a large value.
+     */
+    private static final class XMLBuffer {
+
+        private static final int MAX_REUSED_BUFFER = 64 * 1024;
+
+        private static final ThreadLocal<XMLBuffer> BUFFERS = new ThreadLocal<XMLBuffer>() {
+            @Override
+            protected XMLBuffer initialValue() {
+                return new XMLBuffer();
+            }
+        };
+
+        private byte[] bytes = new byte[512];
+        private int length = 0;
+
+        static XMLBuffer get() {
+            XMLBuffer buf = BUFFERS.get();
+            buf.length = 0;
+            return buf;
+        }
+
+        void release() {
+            if(bytes.length > MAX_REUSED_BUFFER)
+                bytes = new byte[512];
+            length = 0;
+        }
+
+        int length() {
+            return length;
+        }
+
+        void skip(int n) {
+            ensure(n);
+            length += n;
+        }
+
+        void setInt(int pos, int v) {
+            bytes[pos] = (byte) (v >>> 24);
+            bytes[pos + 1] = (byte) (v >>> 16);
+            bytes[pos + 2] = (byte) (v >>> 8);
+            bytes[pos + 3] = (byte) v;
+        }
+
+        /* Append a string known to be ASCII */
+        void ascii(String s) {
+            int n = s.length();
+            ensure(n);
+            for(int i = 0; i < n; ++ i)
+                bytes[length++] = (byte) s.charAt(i);
+        }
+
+        /* Append escaped text, see writeXML */
+        void text(String s) throws KVException {
+            int n = s.length();
+            ensure(n);
+            for(int i = 0; i < n; ++ i) {
+                char c = s.charAt(i);
+                if(c == '&')
+                    ascii("&amp;");
+                else if(c == '<')
+                    ascii("&lt;");
+                else if(c == '>')
+                    ascii("&gt;");
+                else if((c < 0x20 && c != '\t' && c != '\n') || (c >= 0x7f && c <= 0x9f)
+                        || Character.isLowSurrogate(c))
+                    reference(c);
+                else if(Character.isHighSurrogate(c)) {
+                    if(i + 1 == n || !Character.isLowSurrogate(s.charAt(i + 1)))
+                        throw new KVException(KVConstants.ERROR_PARSER);
+                    reference(Character.toCodePoint(c, s.charAt(++ i)));
+                }
+                else if(c < 0x80) {
+                    ensure(1);
+                    bytes[length++] = (byte) c;
+                } else if(c < 0x800) {
+                    ensure(2);
+                    bytes[length++] = (byte) (0xc0 | (c >> 6));
+                    bytes[length++] = (byte) (0x80 | (c & 0x3f));
+                } else {
+                    ensure(3);
+                    bytes[length++] = (byte) (0xe0 | (c >> 12));
+                    bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    bytes[length++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        private void reference(int codePoint) {
+            ascii("&#");
+            ascii(Integer.toString(codePoint));
+            ascii(";");
+        }
+
+        private void ensure(int n) {
+            if(length + n > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+        }
+
+        void writeTo(OutputStream out, int from) throws IOException {
+            out.write(bytes, from, length - from);
+        }
+
+        String toString(int from) {
+            return new String(bytes, from, length - from, UTF_8);
+        }
+    }
+
     /*
      * InputStream wrapper that allows us to reuse the corresponding
      * OutputStream of the socket to send a response.
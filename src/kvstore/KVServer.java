@@ -2,6 +2,12 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 
 /**
@@ -30,6 +36,17 @@ public class KVServer implements KeyValueInterface {
         this.dataStore = new KVStore();
     }
 
+    /**
+     * Constructs a KVServer backed by a given KVCache, such as one bounded
+     * by bytes, and a KVStore.
+     *
+     * @param cache the data cache
+     */
+    public KVServer(KVCache cache) {
+        this.dataCache = cache;
+        this.dataStore = new KVStore();
+    }
+
     /**
      * Performs put request on cache and store.
      *
@@ -60,7 +77,8 @@ public class KVServer implements KeyValueInterface {
 
     /**
      * Performs get request.
-     * Checks cache first. Updates cache if not in cache but located in store.
+     * Checks cache first, without locking for a hit. Updates cache if not in
+     * cache but located in store.
      *
      * @param  key String key
      * @return String value associated with key
@@ -73,8 +91,11 @@ public class KVServer implements KeyValueInterface {
             throw new KVException(msg);
         }
     	
+    	String ret = dataCache.getOptimistic(key); // hits need no lock
+    	if(ret != null)
+    		return ret;
+    	
     	Lock lock = dataCache.getLock(key);
-    	String ret = null;
     	try {
     		lock.lock();
         	ret = dataCache.get(key);
@@ -117,6 +138,146 @@ public class KVServer implements KeyValueInterface {
         }
     }
 
+    /**
+     * Performs a batch of get requests. Keys are grouped by cache set, and
+     * the lock of each set is taken once for all its keys.
+     *
+     * @param  keys keys to get
+     * @return the keys found with their values, in the order of keys
+     */
+    public Map<String, String> mget(Collection<String> keys) {
+    	Map<String, String> found = new HashMap<String, String>();
+    	for(Map.Entry<Lock, List<String>> group : groupBySet(keys).entrySet()) {
+    		Lock lock = group.getKey();
+    		try {
+    			lock.lock();
+    			for(String key : group.getValue()) {
+    				String ret = dataCache.get(key);
+    				if(ret == null) {
+    					try {
+    						ret = dataStore.get(key);
+    						dataCache.put(key, ret);
+    					} catch (KVException e) {
+    						continue; // no such key, skip it
+    					}
+    				}
+    				found.put(key, ret);
+    			}
+    		} finally {
+    			lock.unlock();
+    		}
+    	}
+    	Map<String, String> ret = new LinkedHashMap<String, String>();
+    	for(String key : keys) {
+    		if(found.containsKey(key))
+    			ret.put(key, found.get(key));
+    	}
+    	return ret;
+    }
+
+    /**
+     * Performs a batch of put requests on cache and store. Nothing is
+     * written unless every pair is valid. Keys are grouped by cache set, and
+     * the lock of each set is taken once for all its keys.
+     *
+     * @param  entries keys and values to put
+     * @throws KVException if a key or value is too long
+     */
+    public void mput(Map<String, String> entries) throws KVException {
+    	for(Map.Entry<String, String> e : entries.entrySet()) {
+    		if(e.getKey().length() > MAX_KEY_SIZE)
+    			throw new KVException(new KVMessage(KVConstants.RESP, ERROR_OVERSIZED_KEY));
+    		if(e.getValue().length() > MAX_VAL_SIZE)
+    			throw new KVException(new KVMessage(KVConstants.RESP, ERROR_OVERSIZED_VALUE));
+    	}
+    	for(Map.Entry<Lock, List<String>> group : groupBySet(entries.keySet()).entrySet()) {
+    		Lock lock = group.getKey();
+    		try {
+    			lock.lock();
+    			for(String key : group.getValue()) {
+    				dataCache.put(key, entries.get(key));
+    				dataStore.put(key, entries.get(key));
+    			}
+    		} finally {
+    			lock.unlock();
+    		}
+    	}
+    }
+
+    /**
+     * Performs a batch of del requests. Keys that do not exist are skipped.
+     * Keys are grouped by cache set, and the lock of each set is taken once
+     * for all its keys.
+     *
+     * @param  keys keys to delete
+     * @return the number of keys deleted
+     */
+    public int mdel(Collection<String> keys) {
+    	int deleted = 0;
+    	for(Map.Entry<Lock, List<String>> group : groupBySet(keys).entrySet()) {
+    		Lock lock = group.getKey();
+    		try {
+    			lock.lock();
+    			for(String key : group.getValue()) {
+    				dataCache.del(key);
+    				try {
+    					dataStore.del(key);
+    					++ deleted;
+    				} catch (KVException e) {
+    					// no such key, skip it
+    				}
+    			}
+    		} finally {
+    			lock.unlock();
+    		}
+    	}
+    	return deleted;
+    }
+
+    /**
+     * Get the id of the cache set of a key. Requests on keys of the same set
+     * are serialized by the lock of the set.
+     *
+     * @param  key key of interest
+     * @return set of the key
+     */
+    public int getSetId(String key) {
+        return dataCache.getSetId(key);
+    }
+
+    /**
+     * Get the statistics of the data cache, see KVCache.getStats.
+     *
+     * @param name prefix of the statistics
+     * @return the statistics, one per line
+     */
+    public String getCacheStats(String name) {
+        return dataCache.getStats(name);
+    }
+
+    /**
+     * Group keys by the lock of their cache set. Oversized keys are left
+     * out, as they cannot be stored.
+     *
+     * @param  keys keys of a batch
+     * @return keys of the batch for each set lock
+     */
+    private Map<Lock, List<String>> groupBySet(Collection<String> keys) {
+    	Map<Lock, List<String>> groups = new LinkedHashMap<Lock, List<String>>();
+    	for(String key : keys) {
+    		if(key.length() > MAX_KEY_SIZE)
+    			continue;
+    		Lock lock = dataCache.getLock(key);
+    		List<String> group = groups.get(lock);
+    		if(group == null) {
+    			group = new ArrayList<String>();
+    			groups.put(lock, group);
+    		}
+    		group.add(key);
+    	}
+    	return groups;
+    }
+
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but
@@ -155,6 +316,16 @@ public class KVServer implements KeyValueInterface {
     	return true;
     }
 
+    /**
+     * Returns a weakly consistent, read-only view of the store of this
+     * server, bypassing the cache. Used by TPCLog to checkpoint the store.
+     *
+     * @return read-only view of the store
+     */
+    public Map<String, String> getStoreView() {
+        return dataStore.getView();
+    }
+
     /** This method is purely for convenience and will not be tested. */
     @Override
     public String toString() {
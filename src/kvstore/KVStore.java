@@ -6,6 +6,8 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -81,6 +83,17 @@ public class KVStore implements KeyValueInterface {
         }
     }
 
+    /**
+     * Returns a read-only view of the contents of the store. Iterating over
+     * the view is weakly consistent: it sees every update that completed
+     * before the iteration started and may or may not see concurrent ones.
+     *
+     * @return read-only view of the store
+     */
+    public Map<String, String> getView() {
+        return Collections.unmodifiableMap(store);
+    }
+
     /**
      * Serialize the store to XML. See the spec for specific output format.
      * This method is best effort. Any exceptions that arise can be dropped.
@@ -0,0 +1,38 @@
+package kvstore;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Interface for network handlers that can also service the requests read by
+ * a selector-based SocketServer, which receives whole messages off its
+ * connections without a thread blocked on each of them.
+ */
+public interface MessageHandler extends NetworkHandler {
+
+    /**
+     * Creates a job to service a request received in full on a connection
+     * and returns immediately after enqueuing that job. The job hands its
+     * response to the responder. This is called by an event loop serving
+     * many connections, so it must neither wait for room in the executor
+     * nor run the job itself: see JobExecutor.offerJob.
+     *
+     * @param req the request
+     * @param responder sends the response back on the connection
+     * @throws RejectedExecutionException if the job cannot be queued at
+     *         once; the request is then answered with ERROR_OVERLOADED
+     */
+    public void handle(KVMessage req, Responder responder);
+
+    /**
+     * Sends back the response to one request, on the connection it was
+     * received on.
+     */
+    public interface Responder {
+
+        /**
+         * @param resp the response, or null if there is none
+         */
+        public void respond(KVMessage resp);
+    }
+
+}
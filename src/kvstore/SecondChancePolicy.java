@@ -0,0 +1,19 @@
+package kvstore;
+
+/**
+ * Plain second-chance replacement: every new key is cached, evicting the
+ * victim picked for it.
+ */
+public class SecondChancePolicy implements CachePolicy {
+
+    @Override
+    public void recordAccess(String key) {
+    	// nothing to remember
+    }
+
+    @Override
+    public boolean admit(String candidate, String victim) {
+        return true;
+    }
+
+}
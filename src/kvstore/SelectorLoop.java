@@ -0,0 +1,140 @@
+package kvstore;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop of a selector-based SocketServer. A single thread reads
+ * the requests of all the connections given to the loop, and writes their
+ * responses, without blocking on any of them.
+ * A shared loop also serves the reusable connections that SocketServers
+ * without event loops hand over once their wire format is known.
+ */
+class SelectorLoop implements Runnable {
+
+    /* wake up now and then, to let go of channels closed by other threads */
+    private static final int TIMEOUT = 100;
+
+    private static SelectorLoop shared = null;
+
+    private Selector selector;
+    private MessageHandler handler;
+    private volatile boolean stopped = false;
+
+    /* channels to start reading, and channels with responses to write */
+    private ConcurrentLinkedQueue<KVChannel> registrations = new ConcurrentLinkedQueue<KVChannel>();
+    private ConcurrentLinkedQueue<KVChannel> writes = new ConcurrentLinkedQueue<KVChannel>();
+
+    /**
+     * @param handler services the requests received by the loop
+     * @throws IOException if the selector cannot be opened
+     */
+    SelectorLoop(MessageHandler handler) throws IOException {
+        this.selector = Selector.open();
+        this.handler = handler;
+    }
+
+    /**
+     * Have the loop serve an accepted connection.
+     *
+     * @param channel the connection
+     */
+    void register(SocketChannel channel) {
+    	registrations.add(new KVChannel(channel, this, handler));
+    	selector.wakeup();
+    }
+
+    /**
+     * Have the loop serve a reusable connection accepted elsewhere, the
+     * first bytes of which have already been read.
+     *
+     * @param channel the connection, in blocking mode
+     * @param handler services the requests of the connection
+     * @param wire FRAMED_XML or BINARY, as KVConnection
+     * @param received bytes read off the connection but not parsed yet
+     */
+    void adopt(SocketChannel channel, MessageHandler handler, int wire, byte[] received) {
+    	registrations.add(new KVChannel(channel, this, handler, wire, received));
+    	selector.wakeup();
+    }
+
+    /**
+     * The loop serving the connections handed over by KVConnection.serve,
+     * started on first use by a daemon thread.
+     *
+     * @return the shared loop
+     * @throws IOException if the selector cannot be opened
+     */
+    static synchronized SelectorLoop shared() throws IOException {
+    	if(shared == null) {
+    		shared = new SelectorLoop(null);
+    		Thread thread = new Thread(shared, "KVConnection-loop");
+    		thread.setDaemon(true);
+    		thread.start();
+    	}
+    	return shared;
+    }
+
+    /**
+     * Have the loop write the responses queued on a channel.
+     *
+     * @param channel channel with responses to write
+     */
+    void wantWrite(KVChannel channel) {
+    	writes.add(channel);
+    	selector.wakeup();
+    }
+
+    /**
+     * Stop the loop, which closes all its connections.
+     */
+    void stop() {
+    	stopped = true;
+    	selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+    	try {
+    		while(!stopped) {
+    			selector.select(TIMEOUT);
+    			KVChannel channel;
+    			while((channel = registrations.poll()) != null)
+    				channel.register(selector);
+    			while((channel = writes.poll()) != null)
+    				channel.flush();
+    			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+    			while(it.hasNext()) {
+    				SelectionKey key = it.next();
+    				it.remove();
+    				channel = (KVChannel) key.attachment();
+    				if(key.isValid() && key.isReadable())
+    					channel.read();
+    				if(key.isValid() && key.isWritable())
+    					channel.flush();
+    			}
+    		}
+    	} catch (IOException e) {
+    		// the selector is broken, give up on the connections
+    	} finally {
+    		synchronized(SelectorLoop.class) {
+    			if(shared == this) // let the next caller start another
+    				shared = null;
+    		}
+    		for(SelectionKey key : selector.keys())
+    			((KVChannel) key.attachment()).close();
+    		KVChannel channel;
+    		while((channel = registrations.poll()) != null)
+    			channel.close();
+    		try {
+    			selector.close();
+    		} catch (IOException e) {
+    			// ignore error
+    		}
+    	}
+    }
+}
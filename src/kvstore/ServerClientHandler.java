@@ -3,15 +3,16 @@ package kvstore;
 import static kvstore.KVConstants.*;
 
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
  */
-public class ServerClientHandler implements NetworkHandler {
+public class ServerClientHandler implements MessageHandler {
 
     private KVServer kvServer;
-    private ThreadPool threadPool;
+    private JobExecutor threadPool;
 
     /**
      * Constructs a ServerClientHandler with ThreadPool of a single thread.
@@ -30,8 +31,19 @@ public class ServerClientHandler implements NetworkHandler {
      * @param connections number of threads in threadPool to service requests
      */
     public ServerClientHandler(KVServer kvServer, int connections) {
+        this(kvServer, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a ServerClientHandler running its jobs on an executor,
+     * such as a ThreadPerJobExecutor.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param executor runs the jobs servicing requests
+     */
+    public ServerClientHandler(KVServer kvServer, JobExecutor executor) {
         this.kvServer = kvServer;
-        threadPool = new ThreadPool(connections);
+        threadPool = executor;
     }
 
     /**
@@ -50,9 +62,40 @@ public class ServerClientHandler implements NetworkHandler {
     }
 
     /**
-     * Runnable class with routine to service a request from the client.
+     * Creates a job to service a request received by a selector-based
+     * SocketServer, or on a reusable connection, and enqueues that job in
+     * the thread pool, with the cache set of its key as affinity.
+     * Called by an event loop, so the job is never waited for nor run
+     * here: if there is no room for it, it is rejected.
+     *
+     * @param req the request
+     * @param responder sends the response back
+     * @throws RejectedExecutionException if the job cannot be queued at once
      */
-    private class ClientHandler implements Runnable {
+    @Override
+    public void handle(final KVMessage req, final MessageHandler.Responder responder) {
+    	threadPool.offerJob(new Runnable() {
+    		@Override
+    		public void run() {
+    			responder.respond(serve(req));
+    		}
+    	}, affinity(req));
+    }
+
+    /**
+     * Affinity of a request in the thread pool: the cache set of its key,
+     * or -1 for batches, which span sets.
+     */
+    private int affinity(KVMessage req) {
+    	if(req.getKey() == null || req.getKey().length() == 0)
+    		return -1;
+    	return kvServer.getSetId(req.getKey());
+    }
+
+    /**
+     * Runnable class with routine to service the requests from the client.
+     */
+    private class ClientHandler implements Runnable, KVConnection.RequestHandler {
 
         private Socket client;
 
@@ -66,50 +109,87 @@ public class ServerClientHandler implements NetworkHandler {
         }
 
         /**
-         * Processes request from client and sends back a response with the
-         * result. The delivery of the response is best-effort. If we are
-         * unable to return a response, there is nothing else we can do.
+         * Processes the requests from client and sends back responses with
+         * the results: a single one on a XML connection, any number of
+         * pipelined ones otherwise. The delivery of the responses is
+         * best-effort. If we are unable to return a response, there is
+         * nothing else we can do.
          */
         @Override
         public void run() {
-        	KVMessage resp = null;
-            try {
-				KVMessage msg = new KVMessage(client);
-				
-				if(msg.getKey() == null || msg.getKey().length() == 0)
-					throw new KVException(KVConstants.ERROR_INVALID_KEY);
-				
-				if(msg.getMsgType().equals(KVConstants.PUT_REQ)) { // put
-					if(msg.getValue() == null || msg.getValue().length() == 0)
-						throw new KVException(KVConstants.ERROR_INVALID_VALUE);
-					
-					kvServer.put(msg.getKey(), msg.getValue());
-					resp = new KVMessage(KVConstants.RESP,KVConstants.SUCCESS);
-				} else
-				if(msg.getMsgType().equals(KVConstants.GET_REQ)) { // get
-					String value = kvServer.get(msg.getKey());
-					resp = new KVMessage(KVConstants.RESP);
-					resp.setKey(msg.getKey());
-					resp.setValue(value);
-				} else
-				if(msg.getMsgType().equals(KVConstants.DEL_REQ)) { // del
-					kvServer.del(msg.getKey());
-					resp = new KVMessage(KVConstants.RESP,KVConstants.SUCCESS);
-				} else
-					// no such key
-					return ;
-			} catch (KVException e) {
-				// send back an error message
-				resp = new KVMessage(e.getKVMessage());
-			}
-            if(resp != null) {
-            	try {
-					resp.sendMessage(client);
-				} catch (KVException e) {
-					// nothing can be done
-				}
-            }
+        	try {
+        		// in the format the client chose
+        		KVConnection.accept(client).serve(ServerClientHandler.this, this);
+        	} catch (KVException e) {
+        		// closed before sending anything
+        	}
         }
+
+        @Override
+        public KVMessage handleRequest(KVMessage req) {
+        	return serve(req);
+        }
+    }
+
+    /**
+     * Processes a request from client.
+     *
+     * @param msg the request
+     * @return the response with the result, null if the type is unknown
+     */
+    private KVMessage serve(KVMessage msg) {
+    	KVMessage resp = null;
+        try {
+			if(KVMessage.isBatchType(msg.getMsgType())) // mget, mput, mdel
+				return handleBatch(msg);
+			if(msg.getKey() == null || msg.getKey().length() == 0)
+				throw new KVException(KVConstants.ERROR_INVALID_KEY);
+			
+			if(msg.getMsgType().equals(KVConstants.PUT_REQ)) { // put
+				if(msg.getValue() == null || msg.getValue().length() == 0)
+					throw new KVException(KVConstants.ERROR_INVALID_VALUE);
+				
+				kvServer.put(msg.getKey(), msg.getValue());
+				resp = new KVMessage(KVConstants.RESP,KVConstants.SUCCESS);
+			} else
+			if(msg.getMsgType().equals(KVConstants.GET_REQ)) { // get
+				String value = kvServer.get(msg.getKey());
+				resp = new KVMessage(KVConstants.RESP);
+				resp.setKey(msg.getKey());
+				resp.setValue(value);
+			} else
+			if(msg.getMsgType().equals(KVConstants.DEL_REQ)) { // del
+				kvServer.del(msg.getKey());
+				resp = new KVMessage(KVConstants.RESP,KVConstants.SUCCESS);
+			} else
+				// no such key
+				return null;
+		} catch (KVException e) {
+			// send back an error message
+			resp = new KVMessage(e.getKVMessage());
+		}
+        return resp;
+    }
+
+    /**
+     * Processes a batch request from client. Its keys, and values, were
+     * checked when it was received.
+     *
+     * @param msg the batch request
+     * @return the response with the result
+     * @throws KVException if a key or value of a MPUT is too long
+     */
+    private KVMessage handleBatch(KVMessage msg) throws KVException {
+    	if(msg.getMsgType().equals(KVConstants.MGET_REQ)) { // mget
+    		KVMessage resp = new KVMessage(KVConstants.RESP);
+    		resp.setBatch(kvServer.mget(msg.getBatch().keySet()));
+    		return resp;
+    	}
+    	if(msg.getMsgType().equals(KVConstants.MPUT_REQ)) // mput
+    		kvServer.mput(msg.getBatch());
+    	else // mdel
+    		kvServer.mdel(msg.getBatch().keySet());
+    	return new KVMessage(KVConstants.RESP, KVConstants.SUCCESS);
     }
 
 }
@@ -5,12 +5,25 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This is a generic class that should handle all TCP network connections
  * arriving on a unique (hostname, port) tuple. Ensure that this class
  * remains generic by providing the connection handling logic in a
  * NetworkHandler.
+ * By default a thread of the handler blocks on each connection until its
+ * wire format is known, and KVConnection hands reusable ones to a shared
+ * selector loop. With event loops, connections are instead served by a few
+ * selector threads, and a MessageHandler is only handed requests received
+ * in full.
  */
 public class SocketServer {
 
@@ -18,7 +31,13 @@ public class SocketServer {
     private int port;
     private ServerSocket server;
     private NetworkHandler handler;
-    private boolean stopped = false;
+    private volatile boolean stopped = false;
+    /* number of selector threads, 0 to hand sockets to the handler */
+    private int eventLoops = 0;
+    private ServerSocketChannel channel = null;
+    /* accepted connections, closed on stop; forgotten once unreferenced */
+    private Set<Socket> connections =
+    		Collections.newSetFromMap(new WeakHashMap<Socket, Boolean>());
 
     private static final int TIMEOUT = 100;
 
@@ -57,6 +76,21 @@ public class SocketServer {
         this.handler = handler;
     }
 
+    /**
+     * Serve connections with a number of selector event loops instead of a
+     * thread blocked on each of them: the loops accept connections and read
+     * requests without blocking, and a request is handed to the handler only
+     * once it has been received in full. Thousands of mostly idle
+     * connections then need no more threads than the loops. Only used with
+     * a MessageHandler; other handlers are handed the sockets as usual.
+     * Must be called before connect().
+     *
+     * @param eventLoops number of event-loop threads, 0 to block on sockets
+     */
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
     /**
      * Creates a new ServerSocket and binds it to an endpoint.
      * If the given port is 0, the ServerSocket should be bound to an
@@ -65,7 +99,9 @@ public class SocketServer {
      * @throws IOException if unable create and bind a ServerSocket
      */
     public void connect() throws IOException {
-    	server = new ServerSocket();
+    	// accepted sockets have a channel, to read reusable ones with a selector
+    	channel = ServerSocketChannel.open();
+    	server = channel.socket();
     	server.bind(new InetSocketAddress(hostname, port));
     	if(port == 0)
     		port = server.getLocalPort();
@@ -74,12 +110,17 @@ public class SocketServer {
     /**
      * Accept and save requests as jobs to be serviced asynchronously.
      * A call to stop() should result in the closing of the ServerSocket
-     * within TIMEOUT milliseconds.
+     * within TIMEOUT milliseconds, together with any accepted connection
+     * still open.
      *
      * @throws IOException if there is an unexpected network error while
      *         listening for or servicing requests
      */
     public void start() throws IOException {
+    	if(eventLoops > 0 && handler instanceof MessageHandler) {
+    		startEventLoops();
+    		return ;
+    	}
     	// TODO: setSoTimeout() might throw SocketException
     	server.setSoTimeout(TIMEOUT);
     	
@@ -87,8 +128,14 @@ public class SocketServer {
 	        while (!stopped) {
 	        	try {
 	        		Socket sock = server.accept();
-	        		if(sock != null)
-	        			handler.handle(sock);
+	        		if(sock != null) {
+	        			connections.add(sock);
+	        			try {
+	        				handler.handle(sock);
+	        			} catch (RejectedExecutionException e) {
+	        				sock.close(); // overloaded, turn it down at once
+	        			}
+	        		}
 	        	}catch(SocketTimeoutException e) {
 	        		continue;
 	        	}
@@ -99,6 +146,74 @@ public class SocketServer {
     		} catch (IOException e) {
     			// ignore error
     		}
+    		// long-lived connections must not outlive the server
+    		for(Socket sock : connections) {
+    			try {
+    				sock.close();
+    			} catch (IOException e) {
+    				// ignore error
+    			}
+    		}
+    		connections.clear();
+    	}
+    }
+
+    /**
+     * Accept connections and hand them to the event loops in turn, until
+     * stop() is called. Then close the ServerSocket, and have the loops close
+     * every connection, all within TIMEOUT milliseconds.
+     *
+     * @throws IOException if there is an unexpected network error while
+     *         listening for connections
+     */
+    private void startEventLoops() throws IOException {
+    	SelectorLoop[] loops = new SelectorLoop[eventLoops];
+    	Thread[] threads = new Thread[eventLoops];
+    	Selector acceptor = null;
+    	try {
+    		for(int i = 0; i < eventLoops; ++ i) {
+    			loops[i] = new SelectorLoop((MessageHandler) handler);
+    			threads[i] = new Thread(loops[i], "SocketServer-loop-" + i);
+    			threads[i].setDaemon(true);
+    			threads[i].start();
+    		}
+    		acceptor = Selector.open();
+    		channel.configureBlocking(false);
+    		channel.register(acceptor, SelectionKey.OP_ACCEPT);
+    		int next = 0;
+    		while(!stopped) {
+    			if(acceptor.select(TIMEOUT) == 0)
+    				continue;
+    			acceptor.selectedKeys().clear();
+    			SocketChannel sock;
+    			while((sock = channel.accept()) != null) {
+    				loops[next].register(sock);
+    				next = (next + 1) % eventLoops;
+    			}
+    		}
+    	} finally {
+    		if(acceptor != null) {
+    			try {
+    				acceptor.close();
+    			} catch (IOException e) {
+    				// ignore error
+    			}
+    		}
+    		try {
+    			server.close();
+    		} catch (IOException e) {
+    			// ignore error
+    		}
+    		for(int i = 0; i < eventLoops; ++ i) {
+    			if(loops[i] == null)
+    				continue;
+    			loops[i].stop();
+    			try {
+    				threads[i].join(TIMEOUT);
+    			} catch (InterruptedException e) {
+    				// ignore, the loop closes its connections anyway
+    			}
+    		}
     	}
     }
 
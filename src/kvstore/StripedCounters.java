@@ -0,0 +1,87 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of counters, cheap to increment from many threads at once:
+ * as with Java 8's LongAdder, each counter is split into stripes, a thread
+ * only adds to its own stripe, and reading a counter sums its stripes.
+ * Threads are dealt stripes in turn when they first count, and a thread
+ * that finds its stripe contended moves to the next one. Stripes lie in
+ * separate regions of memory, PADDING longs apart, so threads on different
+ * stripes do not contend for a cache line, nor for the line next to it,
+ * which some CPUs fetch along with it.
+ */
+public class StripedCounters {
+
+    /* longs in two cache lines, padding between stripes */
+    private static final int PADDING = 16;
+
+    /* stripe of each thread, dealt in turn, and moved on contention */
+    private static final AtomicInteger nextStripe = new AtomicInteger();
+    private static final ThreadLocal<int[]> threadStripe = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] { nextStripe.getAndIncrement() };
+        }
+    };
+
+    private AtomicLongArray cells;
+    private int counters;
+    private int stride;
+    private int stripes;
+
+    /**
+     * @param counters the number of counters
+     */
+    public StripedCounters(int counters) {
+        this.counters = counters;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        stripes = Math.min(Integer.highestOneBit(Math.max(cpus - 1, 1)) << 1, 16);
+        stride = counters + PADDING;
+        cells = new AtomicLongArray(stripes * stride + PADDING);
+    }
+
+    /**
+     * Add one to a counter. If another thread is adding to the same cell,
+     * the increment still happens, and this thread uses another stripe from
+     * then on.
+     *
+     * @param counter index of the counter
+     */
+    public void increment(int counter) {
+    	int[] stripe = threadStripe.get();
+    	int i = (stripe[0] & (stripes - 1)) * stride + PADDING + counter;
+    	long value = cells.get(i);
+    	if(!cells.compareAndSet(i, value, value + 1)) {
+    		++ stripe[0]; // contended, move on
+    		cells.incrementAndGet(i);
+    	}
+    }
+
+    /**
+     * Get the value of a counter. Increments made meanwhile may or may not
+     * be seen.
+     *
+     * @param counter index of the counter
+     * @return sum of the stripes of the counter
+     */
+    public long get(int counter) {
+    	long sum = 0;
+    	for(int i = 0; i < stripes; ++ i)
+    		sum += cells.get(i * stride + PADDING + counter);
+    	return sum;
+    }
+
+    public int size() {
+        return counters;
+    }
+
+    /**
+     * The stripe the calling thread adds to.
+     */
+    int stripe() {
+    	return threadStripe.get()[0] & (stripes - 1);
+    }
+}
@@ -4,15 +4,19 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * It uses a threadPool to ensure that none of it's methods are blocking.
  */
-public class TPCClientHandler implements NetworkHandler {
+public class TPCClientHandler implements MessageHandler {
 
     private TPCMaster tpcMaster;
-    private ThreadPool threadPool;
+    private JobExecutor threadPool;
 
     /**
      * Constructs a TPCClientHandler with ThreadPool of a single thread.
@@ -30,8 +34,19 @@ public class TPCClientHandler implements NetworkHandler {
      * @param connections number of threads in threadPool to service requests
      */
     public TPCClientHandler(TPCMaster tpcMaster, int connections) {
+    	this(tpcMaster, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a TPCClientHandler running its jobs on an executor, such
+     * as a ThreadPerJobExecutor.
+     *
+     * @param tpcMaster TPCMaster to carry out requests
+     * @param executor runs the jobs servicing requests
+     */
+    public TPCClientHandler(TPCMaster tpcMaster, JobExecutor executor) {
     	this.tpcMaster = tpcMaster;
-    	threadPool = new ThreadPool(connections);
+    	threadPool = executor;
     }
 
     /**
@@ -50,9 +65,41 @@ public class TPCClientHandler implements NetworkHandler {
     }
 
     /**
-     * Runnable class containing routine to service a request from the client.
+     * Creates a job to service a request received by a selector-based
+     * SocketServer, or on a reusable connection, and enqueues that job in
+     * the thread pool, with the cache set of its key as affinity.
+     * Called by an event loop, so the job is never waited for nor run
+     * here: if there is no room for it, it is rejected.
+     *
+     * @param req the request
+     * @param responder sends the response back
+     * @throws RejectedExecutionException if the job cannot be queued at once
      */
-    private class ClientHandler implements Runnable {
+    @Override
+    public void handle(final KVMessage req, final MessageHandler.Responder responder) {
+    	threadPool.offerJob(new Runnable() {
+    		@Override
+    		public void run() {
+    			responder.respond(serve(req));
+    		}
+    	}, affinity(req));
+    }
+
+    /**
+     * Affinity of a request in the thread pool: the set of its key in the
+     * cache of the master.
+     */
+    private int affinity(KVMessage req) {
+    	if(req.getKey() == null || req.getKey().length() == 0)
+    		return -1;
+    	return tpcMaster.getSetId(req.getKey());
+    }
+
+    /**
+     * Runnable class containing routine to service the requests from the
+     * client.
+     */
+    private class ClientHandler implements Runnable, KVConnection.RequestHandler {
 
         private Socket client = null;
 
@@ -66,40 +113,84 @@ public class TPCClientHandler implements NetworkHandler {
         }
 
         /**
-         * Processes request from client and sends back a response with the
-         * result. The delivery of the response is best-effort. If we are
-         * unable to return any response, there is nothing else we can do.
+         * Processes the requests from client and sends back responses with
+         * the results: a single one on a XML connection, any number of
+         * pipelined ones otherwise. The delivery of the responses is
+         * best-effort. If we are unable to return any response, there is
+         * nothing else we can do.
          */
         @Override
         public void run() {
-        	KVMessage resp = null;
         	try {
-				KVMessage req = new KVMessage(client);
-				if(KVConstants.GET_REQ.equals(req.getMsgType())) { // get
-					String value = tpcMaster.handleGet(req);
-					resp = new KVMessage(KVConstants.RESP);
-					resp.setKey(req.getKey());
-					resp.setValue(value);
-				} else
-				if(KVConstants.PUT_REQ.equals(req.getMsgType())) { // put
-					tpcMaster.handleTPCRequest(req, true);
-					resp = new KVMessage(KVConstants.RESP,KVConstants.SUCCESS);
-				} else
-				if(KVConstants.DEL_REQ.equals(req.getMsgType())) { // del
-					tpcMaster.handleTPCRequest(req, false);
-					resp = new KVMessage(KVConstants.RESP,KVConstants.SUCCESS);
-				}
-			} catch (KVException e) {
-				resp = new KVMessage(e.getKVMessage());
-			}
-        	if(resp != null) {
-            	try {
-					resp.sendMessage(client);
-				} catch (KVException e) {
-					// nothing can be done
-				}
-            }
+        		// in the format the client chose
+        		KVConnection.accept(client).serve(TPCClientHandler.this, this);
+        	} catch (KVException e) {
+        		// closed before sending anything
+        	}
         }
+
+        @Override
+        public KVMessage handleRequest(KVMessage req) {
+        	return serve(req);
+        }
+    }
+
+    /**
+     * Processes a request from client. A MGET reads its keys one by one, as
+     * GETs; a MPUT or MDEL is answered with ERROR_UNSUPPORTED_REQUEST, since
+     * a transaction of the master only ever changes a single key.
+     *
+     * @param req the request
+     * @return the response with the result, null if the type is unknown
+     */
+    private KVMessage serve(KVMessage req) {
+    	KVMessage resp = null;
+    	try {
+			if(KVConstants.MGET_REQ.equals(req.getMsgType())) { // mget
+				resp = new KVMessage(KVConstants.RESP);
+				resp.setBatch(mget(req.getBatch().keySet()));
+			} else
+			if(KVMessage.isBatchType(req.getMsgType())) { // mput, mdel
+				throw new KVException(KVConstants.ERROR_UNSUPPORTED_REQUEST);
+			} else
+			if(KVConstants.GET_REQ.equals(req.getMsgType())) { // get
+				String value = tpcMaster.handleGet(req);
+				resp = new KVMessage(KVConstants.RESP);
+				resp.setKey(req.getKey());
+				resp.setValue(value);
+			} else
+			if(KVConstants.PUT_REQ.equals(req.getMsgType())) { // put
+				tpcMaster.handleTPCRequest(req, true);
+				resp = new KVMessage(KVConstants.RESP,KVConstants.SUCCESS);
+			} else
+			if(KVConstants.DEL_REQ.equals(req.getMsgType())) { // del
+				tpcMaster.handleTPCRequest(req, false);
+				resp = new KVMessage(KVConstants.RESP,KVConstants.SUCCESS);
+			}
+		} catch (KVException e) {
+			resp = new KVMessage(e.getKVMessage());
+		}
+    	return resp;
+    }
+
+    /**
+     * Get the values of several keys, leaving out those without one.
+     *
+     * @param keys the keys, in order
+     * @return the values found, in the order of their keys
+     */
+    private Map<String, String> mget(Collection<String> keys) {
+    	Map<String, String> found = new LinkedHashMap<String, String>();
+    	for(String key : keys) {
+    		KVMessage get = new KVMessage(KVConstants.GET_REQ);
+    		get.setKey(key);
+    		try {
+    			found.put(key, tpcMaster.handleGet(get));
+    		} catch (KVException e) {
+    			// no such key on either replica
+    		}
+    	}
+    	return found;
     }
 
 }
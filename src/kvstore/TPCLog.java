@@ -1,40 +1,263 @@
 package kvstore;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
+/**
+ * Append-only write-ahead log of the KVMessages a slave receives from the
+ * master. Every entry is written exactly once at the tail of the log as a
+ * record, so the cost of logging does not depend on the size of the log.
+ *
+ * Record format, all integers big-endian:
+ *   int    length of the payload
+ *   byte   message type (see TYPE_CODES)
+ *   long   2PC transaction ID, 0 if the message has none
+ *   int    key length in UTF-8 bytes, -1 if there is no key
+ *   byte[] key
+ *   int    value length in UTF-8 bytes, -1 if there is no value
+ *   byte[] value
+ *   int    CRC32 of the payload
+ * The payload is everything between the length and the CRC. Recovery stops
+ * at the first record that is truncated or fails its checksum. If no
+ * complete record follows it in the last segment, it is the tail left
+ * behind by a crash during an append and is cut off; anywhere else the log
+ * is corrupt and is not opened.
+ *
+ * Fsync policy: with syncOnAppend (the default) appendAndFlush does not
+ * return before its record is on stable storage, so a vote or ACK is never
+ * sent for an entry that could be lost in a crash. Records are made durable
+ * by group commit: appenders queue their records and a single writer thread
+ * writes and forces them to disk as one batch. A batch is closed when it
+ * holds maxBatchSize records or when its oldest record has waited
+ * maxBatchDelay milliseconds; a delay of 0 writes whatever queued up while
+ * the previous batch was being forced. Without syncOnAppend records are only
+ * handed to the OS, and flushToDisk() must be called to make them durable.
+ * If a record cannot be written or forced, the log is marked failed: the
+ * appends of that batch and every later one throw, so that the slave never
+ * answers for an entry that may not be on disk.
+ *
+ * A COMMIT with a transaction ID applies the PUT or DEL prepared under the
+ * same ID, so several transactions may be in flight at once. Entries without
+ * a transaction ID fall back to pairing a COMMIT with the entry before it.
+ * The master may abort a transaction whose prepare timed out, and that ABORT
+ * can reach the log before the prepare does. Such early decisions are
+ * remembered for EARLY_DECISION_MEMORY milliseconds, and the late prepare
+ * is then not logged, so it does not stay undecided forever.
+ *
+ * On disk the log is a sequence of segment files named logPath.N plus a
+ * checkpoint file logPath.checkpoint. A checkpoint starts a new segment,
+ * writes a snapshot of the KVStore that covers every older segment and then
+ * deletes those segments, so recovery only replays what was logged since
+ * the last checkpoint. A checkpoint is taken automatically every
+ * checkpointInterval records, or on demand with checkpoint().
+ * Undecided prepares are carried from one checkpoint to the next for as
+ * long as it takes: once the slave has voted READY only the master can
+ * decide them, and it resends its decision until the slave ACKs it.
+ */
 public class TPCLog {
 
     private String logPath;
     private KVServer kvServer;
-    private ArrayList<KVMessage> entries;
+    private KVMessage lastEntry;
+    private boolean syncOnAppend;
+    private int maxBatchSize;
+    private int maxBatchDelay;
+
+    /* Group commit state, guarded by lock */
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition batchReady = lock.newCondition();
+    private Condition batchDurable = lock.newCondition();
+    private ArrayList<byte[]> pending = new ArrayList<byte[]>();
+    private long appendedSeq = 0;
+    private long durableSeq = 0;
+    /* first append that could not be made durable, the log is failed from it on */
+    private long failedSeq = Long.MAX_VALUE;
+    private boolean closed = true;
+    private Thread writer;
+    private LinkedHashMap<Long, KVMessage> prepared = new LinkedHashMap<Long, KVMessage>();
+    /* decisions logged before their prepare, by transaction ID, with the time they were logged */
+    private LinkedHashMap<Long, Long> earlyDecisions = new LinkedHashMap<Long, Long>();
+
+    /* Active segment, guarded by fileLock. Never take lock while holding it */
+    private ReentrantLock fileLock = new ReentrantLock();
+    private RandomAccessFile logFile;
+    private FileChannel channel;
+    private long segment = 0;
+    private int recordsSinceCheckpoint = 0;
+
+    /* Checkpointing */
+    private ReentrantLock checkpointLock = new ReentrantLock();
+    private volatile int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    /* Largest record we are willing to read back, guards against garbage */
+    private static final int MAX_RECORD_SIZE = 4 * 1024 * 1024;
+
+    /* Message types that may be logged, indexed by their type byte */
+    private static final String[] TYPE_CODES = {
+        KVConstants.PUT_REQ, KVConstants.DEL_REQ, KVConstants.GET_REQ,
+        KVConstants.COMMIT, KVConstants.ABORT
+    };
+
+    private static final int CHECKPOINT_MAGIC = 0x54504343; // "TPCC"
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final int DEFAULT_MAX_BATCH_DELAY = 0;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+    public static final long EARLY_DECISION_MEMORY = 10 * 60 * 1000;
 
     /**
      * Constructs a TPCLog to log KVMessages from the master.
+     * Every append is durable before it returns, using group commit with
+     * the default batch settings.
      *
-     * @param logPath path to location of log file for this server
+     * @param logPath path prefix of the log files for this server
      * @param kvServer reference to the KVServer of this slave
      */
     public TPCLog(String logPath, KVServer kvServer) throws KVException {
+        this(logPath, kvServer, true, DEFAULT_MAX_BATCH_SIZE,
+             DEFAULT_MAX_BATCH_DELAY);
+    }
+
+    /**
+     * Constructs a TPCLog to log KVMessages from the master.
+     *
+     * @param logPath path prefix of the log files for this server
+     * @param kvServer reference to the KVServer of this slave
+     * @param syncOnAppend whether appendAndFlush waits for its record to be
+     *        forced to disk
+     */
+    public TPCLog(String logPath, KVServer kvServer, boolean syncOnAppend)
+            throws KVException {
+        this(logPath, kvServer, syncOnAppend, DEFAULT_MAX_BATCH_SIZE,
+             DEFAULT_MAX_BATCH_DELAY);
+    }
+
+    /**
+     * Constructs a TPCLog to log KVMessages from the master which group
+     * commits appends with the given batch settings. Larger batches and
+     * longer delays trade commit latency for fewer forced writes.
+     *
+     * @param logPath path prefix of the log files for this server
+     * @param kvServer reference to the KVServer of this slave
+     * @param maxBatchSize maximum number of records forced to disk together
+     * @param maxBatchDelay maximum time in milliseconds a record waits for
+     *        its batch to fill up
+     */
+    public TPCLog(String logPath, KVServer kvServer, int maxBatchSize,
+            int maxBatchDelay) throws KVException {
+        this(logPath, kvServer, true, maxBatchSize, maxBatchDelay);
+    }
+
+    private TPCLog(String logPath, KVServer kvServer, boolean syncOnAppend,
+            int maxBatchSize, int maxBatchDelay) throws KVException {
         this.logPath = logPath;
         this.kvServer = kvServer;
-        this.entries = new ArrayList<KVMessage>();
+        this.syncOnAppend = syncOnAppend;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxBatchDelay = Math.max(0, maxBatchDelay);
+        this.lastEntry = null;
         rebuildServer();
     }
 
     /**
-     * Add an entry to the log and flush the entire log to disk.
-     * You do not have to efficiently append entries onto the log stored on disk.
+     * Sets how many records are appended between two automatic checkpoints.
+     *
+     * @param records number of records between checkpoints, 0 to only take
+     *        checkpoints through checkpoint()
+     */
+    public void setCheckpointInterval(int records) {
+        checkpointInterval = Math.max(0, records);
+    }
+
+    /**
+     * Append an entry at the tail of the log. If syncOnAppend is set, the
+     * entry is durable when this method returns. GET requests are ignored:
+     * they do not change state, and logging them would hide the prepare a
+     * later COMMIT refers to. Neither is the late prepare of a transaction
+     * whose decision was logged first.
      *
      * @param entry KVMessage to write to the log
+     * @return false if the entry was not logged: a GET, or a prepare which
+     *         came after the decision of its transaction
+     * @throws KVException with ERROR_COULD_NOT_LOG if the entry could not be
+     *         written or forced to disk, the log has failed before, or it
+     *         is closed or its segment could not be opened
      */
-    public void appendAndFlush(KVMessage entry) {
-        entries.add(entry);
-        flushToDisk();
+    public boolean appendAndFlush(KVMessage entry) throws KVException {
+        if (KVConstants.GET_REQ.equals(entry.getMsgType())) {
+            return false;
+        }
+        byte[] record;
+        try {
+            record = encode(entry);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            if (closed || failedSeq != Long.MAX_VALUE) { // nowhere to write it
+                throw new KVException(KVConstants.ERROR_COULD_NOT_LOG);
+            }
+            if (isLatePrepare(earlyDecisions, prepared, entry, System.currentTimeMillis())) {
+                return false;
+            }
+            lastEntry = entry;
+            track(prepared, entry);
+            long seq = ++appendedSeq;
+            if (!syncOnAppend) {
+                if (!writeRecords(Collections.singletonList(record), false)) {
+                    failedSeq = seq;
+                    throw new KVException(KVConstants.ERROR_COULD_NOT_LOG);
+                }
+                durableSeq = seq;
+                return true;
+            }
+            pending.add(record);
+            batchReady.signal();
+            while (durableSeq < seq) { // the writer drains the queue even on close
+                try {
+                    batchDurable.await();
+                } catch (InterruptedException e) {
+                    interrupted = true; // keep waiting, the caller relies on durability
+                }
+            }
+            if (seq >= failedSeq) {
+                throw new KVException(KVConstants.ERROR_COULD_NOT_LOG);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
@@ -43,84 +266,773 @@ public class TPCLog {
      * @return last entry put into the log
      */
     public KVMessage getLastEntry() {
-        if (entries.size() > 0) {
-            return entries.get(entries.size() - 1);
+        lock.lock();
+        try {
+            return lastEntry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the prepared PUT or DEL request of a transaction that has not been
+     * committed or aborted yet.
+     *
+     * @param txnID ID of the transaction
+     * @return the logged request, or null if there is no such transaction or
+     *         it has already been decided
+     */
+    public KVMessage getPreparedEntry(long txnID) {
+        lock.lock();
+        try {
+            return prepared.get(txnID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces all appended entries to persistent storage.
+     */
+    public void flushToDisk() {
+        fileLock.lock();
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            fileLock.unlock();
         }
-        return null;
     }
 
     /**
-     * Load log from persistent storage at logPath.
+     * Closes the log after writing out any queued entries. Entries appended
+     * afterwards fail with ERROR_COULD_NOT_LOG.
      */
-    @SuppressWarnings("unchecked")
-    public void loadFromDisk() {
-        ObjectInputStream inputStream = null;
+    public void close() {
+        Thread oldWriter;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            oldWriter = writer;
+            writer = null;
+            batchReady.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (oldWriter != null) {
+            try {
+                oldWriter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        fileLock.lock();
+        try {
+            closeSegment();
+        } finally {
+            fileLock.unlock();
+        }
+    }
 
+    /**
+     * Writes a checkpoint: starts a new segment, writes a snapshot of the
+     * KVStore covering every older segment and then deletes those segments.
+     * Appends may continue while the snapshot is written. Does nothing if a
+     * checkpoint is already in progress.
+     */
+    public void checkpoint() {
+        if (!checkpointLock.tryLock()) {
+            return;
+        }
         try {
-            inputStream = new ObjectInputStream(new FileInputStream(logPath));
-            entries = (ArrayList<KVMessage>) inputStream.readObject();
-        } catch (Exception e) {
+            long firstSegment;
+            ArrayList<KVMessage> undecided;
+            lock.lock();
+            try {
+                fileLock.lock();
+                try {
+                    if (channel == null) {
+                        return;
+                    }
+                    closeSegment();
+                    openSegment(segment + 1, 0);
+                    firstSegment = segment;
+                    recordsSinceCheckpoint = 0;
+                } finally {
+                    fileLock.unlock();
+                }
+                /*
+                 * Queued records not written yet land in the new segment, so
+                 * they may be counted here and replayed again; both are
+                 * harmless.
+                 */
+                undecided = new ArrayList<KVMessage>(prepared.values());
+                if (lastEntry != null && lastEntry.getTxnID() == 0 && isPrepare(lastEntry)) {
+                    undecided.add(lastEntry);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            /*
+             * Every commit logged in an older segment was applied to the
+             * store before it was logged, so the snapshot covers them. It may
+             * also see later commits; replaying those again is harmless.
+             */
+            if (writeCheckpoint(firstSegment, undecided)) {
+                deleteSegmentsBefore(firstSegment);
+            }
         } finally {
-            // if log did not exist, creating empty entries list
-            if (entries == null) {
-                entries = new ArrayList<KVMessage>();
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Rebuild KVServer from the latest checkpoint and the segments written
+     * since, streaming over the log entries one record at a time. You do not
+     * need to restore the previous cache state (i.e. ignore GETS). A torn
+     * record at the tail of the last segment (from a crash in the middle of
+     * an append) ends the replay and is cut off, so that new entries are
+     * appended right after the last complete one. A record is only taken
+     * for a torn tail if no complete record follows it. A corrupt record
+     * anywhere else cannot come from a crash; replaying around it would
+     * rebuild a state that never existed, so the log is not opened.
+     *
+     * @throws KVException with ERROR_CORRUPT_LOG if a record other than the
+     *         tail of the last segment is corrupt, or if an error occurs in
+     *         KVServer
+     */
+    public void rebuildServer() throws KVException {
+        close();
+
+        long firstSegment = 0;
+        KVMessage lastMsg = null;
+        LinkedHashMap<Long, KVMessage> inFlight = new LinkedHashMap<Long, KVMessage>();
+        LinkedHashMap<Long, Long> early = new LinkedHashMap<Long, Long>();
+        long now = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(logPath + CHECKPOINT_SUFFIX)));
+            if (in.readInt() == CHECKPOINT_MAGIC) {
+                firstSegment = in.readLong();
+                int undecided = in.readInt();
+                for (int i = 0; i < undecided; ++i) {
+                    KVMessage msg = decode(readRecord(in));
+                    if (msg.getTxnID() == 0) {
+                        lastMsg = msg;
+                    } else {
+                        track(inFlight, msg);
+                    }
+                }
+                while (in.readBoolean()) {
+                    String key = new String(readBytes(in), UTF8);
+                    String value = new String(readBytes(in), UTF8);
+                    kvServer.put(key, value);
+                }
             }
+        } catch (IOException e) {
+            // no checkpoint yet, replay every segment
+        } finally {
+            closeQuietly(in);
+        }
 
+        deleteSegmentsBefore(firstSegment);
+        long lastSegment = firstSegment;
+        long validLength = 0;
+        List<Long> segments = listSegments();
+        for (long seg : segments) {
+            boolean last = seg == segments.get(segments.size() - 1);
+            lastSegment = seg;
+            validLength = 0;
+            in = null;
             try {
-                if (inputStream != null) {
-                    inputStream.close();
+                in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(segmentPath(seg))));
+                while (true) {
+                    KVMessage msg;
+                    try {
+                        byte[] payload = readRecord(in);
+                        msg = decode(payload);
+                        validLength += payload.length + 8;
+                    } catch (EOFException e) {
+                        if (new File(segmentPath(seg)).length() > validLength
+                                && (!last || hasRecordAfter(seg, validLength))) {
+                            throw corrupt(seg, validLength, e);
+                        }
+                        break; // end of segment, possibly a torn record
+                    }
+                    if (KVConstants.GET_REQ.equals(msg.getMsgType())) {
+                        continue; // older logs contain GETs, they never prepare anything
+                    }
+                    if (isLatePrepare(early, inFlight, msg, now)) {
+                        continue; // logged by an older version, its ABORT came first
+                    }
+                    replay(lastMsg, msg, inFlight);
+                    track(inFlight, msg);
+                    lastMsg = msg;
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                if (!last || hasRecordAfter(seg, validLength)) {
+                    throw corrupt(seg, validLength, e); // later records may depend on it
+                }
+                // only an append torn by a crash can leave this at the tail
+                System.err.println("TPCLog: discarding corrupt tail of " + segmentPath(seg)
+                    + " from offset " + validLength + ": " + e.getMessage());
+            } finally {
+                closeQuietly(in);
             }
         }
+
+        lock.lock();
+        try {
+            lastEntry = lastMsg;
+            prepared = inFlight;
+            earlyDecisions = early;
+            failedSeq = Long.MAX_VALUE;
+            fileLock.lock();
+            try {
+                recordsSinceCheckpoint = 0;
+                openSegment(lastSegment, validLength);
+            } finally {
+                fileLock.unlock();
+            }
+            if (channel != null) {
+                closed = false;
+                if (syncOnAppend) {
+                    writer = new Thread(new GroupCommitWriter(), "TPCLog-writer");
+                    writer.setDaemon(true);
+                    writer.start();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Writes the log to persistent storage at logPath.
+     * Looks for a complete record with a valid checksum anywhere after the
+     * start of a bad one. There is none after a torn append, which can only
+     * be the last thing written.
+     *
+     * @param seg number of the segment
+     * @param offset start of the bad record
+     * @return whether such a record exists, or the segment cannot be read
+     *         again to tell
      */
-    public void flushToDisk() {
-        ObjectOutputStream outputStream = null;
+    private boolean hasRecordAfter(long seg, long offset) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(segmentPath(seg), "r");
+            long length = raf.length() - offset;
+            if (length > Integer.MAX_VALUE) {
+                return true;
+            }
+            byte[] tail = new byte[(int) length];
+            raf.seek(offset);
+            raf.readFully(tail);
+            ByteBuffer buf = ByteBuffer.wrap(tail);
+            for (int p = 1; p + 4 + 17 + 4 <= tail.length; ++p) {
+                int len = buf.getInt(p);
+                if (len < 17 || len > MAX_RECORD_SIZE || len > tail.length - p - 8) {
+                    continue;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(tail, p + 4, len);
+                if ((int) crc.getValue() == buf.getInt(p + 4 + len)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return true;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Reports a corrupt record which cannot be a torn append.
+     */
+    private KVException corrupt(long seg, long offset, IOException cause) {
+        System.err.println("TPCLog: corrupt record in " + segmentPath(seg)
+            + " at offset " + offset + ": " + cause.getMessage());
+        return new KVException(KVConstants.ERROR_CORRUPT_LOG);
+    }
+
+    /**
+     * Applies msg to the KVServer during recovery if it is a COMMIT. The
+     * committed request is the one prepared under the same transaction ID,
+     * or prev if msg has no transaction ID. Entries may be replayed on top
+     * of a checkpoint that already contains them, so deleting a missing key
+     * is not an error.
+     *
+     * @param prev the entry logged before msg
+     * @param msg the entry being replayed
+     * @param inFlight undecided prepares by transaction ID
+     * @throws KVException if an error occurs in KVServer
+     */
+    private void replay(KVMessage prev, KVMessage msg,
+            LinkedHashMap<Long, KVMessage> inFlight) throws KVException {
+        if (!KVConstants.COMMIT.equals(msg.getMsgType())) {
+            return;
+        }
+        KVMessage op = msg.getTxnID() == 0 ? prev : inFlight.get(msg.getTxnID());
+        if (op == null) {
+            return;
+        }
+        if (KVConstants.PUT_REQ.equals(op.getMsgType())) { // operate put req
+            kvServer.put(op.getKey(), op.getValue());
+        } else
+        if (KVConstants.DEL_REQ.equals(op.getMsgType())) { // operate del req
+            if (kvServer.hasKey(op.getKey())) {
+                kvServer.del(op.getKey());
+            }
+        }
+    }
 
+    /**
+     * Updates the undecided prepares with a logged entry: a PUT or DEL
+     * request with a transaction ID starts a transaction, a COMMIT or ABORT
+     * ends it.
+     *
+     * @param inFlight undecided prepares by transaction ID
+     * @param entry entry being logged or replayed
+     */
+    private static void track(LinkedHashMap<Long, KVMessage> inFlight, KVMessage entry) {
+        if (entry.getTxnID() == 0) {
+            return;
+        }
+        if (isPrepare(entry)) {
+            inFlight.put(entry.getTxnID(), entry);
+        } else {
+            inFlight.remove(entry.getTxnID());
+        }
+    }
+
+    /**
+     * Keeps the decisions logged before their prepare, forgetting those
+     * older than EARLY_DECISION_MEMORY, and spots the prepares that come
+     * after them. A resent decision also counts as early; it is forgotten
+     * in time like the others.
+     *
+     * @param early early decisions by transaction ID, with their time
+     * @param inFlight undecided prepares by transaction ID
+     * @param entry entry about to be logged or replayed, before track
+     * @param now current time in milliseconds
+     * @return whether entry is a prepare whose decision is already logged
+     */
+    private static boolean isLatePrepare(LinkedHashMap<Long, Long> early,
+            LinkedHashMap<Long, KVMessage> inFlight, KVMessage entry, long now) {
+        Iterator<Long> times = early.values().iterator();
+        while (times.hasNext() && times.next() < now - EARLY_DECISION_MEMORY) {
+            times.remove();
+        }
+        long txnID = entry.getTxnID();
+        if (txnID == 0) {
+            return false;
+        }
+        if (isPrepare(entry)) {
+            return early.remove(txnID) != null;
+        }
+        if (!inFlight.containsKey(txnID)) {
+            early.put(txnID, now);
+        }
+        return false;
+    }
+
+    private static boolean isPrepare(KVMessage entry) {
+        return KVConstants.PUT_REQ.equals(entry.getMsgType())
+            || KVConstants.DEL_REQ.equals(entry.getMsgType());
+    }
+
+    /**
+     * Opens a segment for appending, discarding anything past validLength.
+     * Called with fileLock held.
+     *
+     * @param seg number of the segment
+     * @param validLength length of the prefix of the segment that holds
+     *        complete records
+     */
+    private void openSegment(long seg, long validLength) {
+        try {
+            File parent = new File(logPath).getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            logFile = new RandomAccessFile(segmentPath(seg), "rw");
+            channel = logFile.getChannel();
+            channel.truncate(validLength);
+            channel.position(validLength);
+            segment = seg;
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeSegment();
+        }
+    }
+
+    /**
+     * Forces and closes the active segment. Called with fileLock held.
+     */
+    private void closeSegment() {
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+            if (logFile != null) {
+                logFile.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            channel = null;
+            logFile = null;
+        }
+    }
+
+    /**
+     * Writes encoded records at the tail of the active segment in one write.
+     * Starts a background checkpoint once checkpointInterval records have
+     * been written since the last one.
+     *
+     * @param records records to write, in order
+     * @param force whether to force the records to disk
+     * @return false if the records could not be written or forced, in
+     *         which case any part of them may or may not be on disk
+     */
+    private boolean writeRecords(List<byte[]> records, boolean force) {
+        int size = 0;
+        for (byte[] record : records) {
+            size += record.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (byte[] record : records) {
+            buf.put(record);
+        }
+        buf.flip();
+        boolean startCheckpoint = false;
+        fileLock.lock();
+        try {
+            if (channel == null) {
+                return false; // the segment could not be opened
+            }
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            if (force) {
+                channel.force(false);
+            }
+            recordsSinceCheckpoint += records.size();
+            int interval = checkpointInterval;
+            startCheckpoint = interval > 0 && recordsSinceCheckpoint >= interval;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            fileLock.unlock();
+        }
+        if (startCheckpoint && !checkpointLock.isLocked()) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    checkpoint();
+                }
+            }, "TPCLog-checkpoint");
+            t.setDaemon(true);
+            t.start();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the checkpoint file. The snapshot is written to a temporary
+     * file, forced to disk and then moved over the previous checkpoint, so a
+     * crash leaves either the old or the new checkpoint in place.
+     *
+     * @param firstSegment first segment not covered by the snapshot
+     * @param undecided prepares logged before firstSegment, which may still
+     *        be committed by a record in firstSegment or later
+     * @return whether the checkpoint was written
+     */
+    private boolean writeCheckpoint(long firstSegment, List<KVMessage> undecided) {
+        File tmp = new File(logPath + CHECKPOINT_SUFFIX + ".tmp");
+        FileOutputStream fos = null;
         try {
-            outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
-            outputStream.writeObject(entries);
-        } catch (Exception e) {
+            fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(firstSegment);
+            out.writeInt(undecided.size());
+            for (KVMessage entry : undecided) {
+                out.write(encode(entry));
+            }
+            for (Map.Entry<String, String> e : kvServer.getStoreView().entrySet()) {
+                out.writeBoolean(true); // one more pair
+                writeBytes(out, e.getKey().getBytes(UTF8));
+                writeBytes(out, e.getValue().getBytes(UTF8));
+            }
+            out.writeBoolean(false);
+            out.flush();
+            fos.getChannel().force(false);
+            out.close();
+            fos = null;
+            Files.move(tmp.toPath(), new File(logPath + CHECKPOINT_SUFFIX).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
             e.printStackTrace();
+            return false;
         } finally {
+            closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Deletes the segments numbered below firstSegment. Best effort.
+     *
+     * @param firstSegment first segment to keep
+     */
+    private void deleteSegmentsBefore(long firstSegment) {
+        for (long seg : listSegments()) {
+            if (seg < firstSegment) {
+                new File(segmentPath(seg)).delete();
+            }
+        }
+    }
+
+    /**
+     * Lists the segments of this log on disk.
+     *
+     * @return segment numbers in increasing order
+     */
+    private List<Long> listSegments() {
+        ArrayList<Long> segments = new ArrayList<Long>();
+        File base = new File(logPath).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        String[] names = base.getParentFile().list();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
             try {
-                if (outputStream != null) {
-                    outputStream.flush();
-                    outputStream.close();
+                segments.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private String segmentPath(long seg) {
+        return logPath + "." + seg;
+    }
+
+    /**
+     * Runnable for the thread which group commits queued records: it waits
+     * for a batch to fill up or time out, writes the whole batch, forces it
+     * to disk once and then releases every appender in the batch.
+     */
+    private class GroupCommitWriter implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                ArrayList<byte[]> batch;
+                long batchEnd;
+                lock.lock();
+                try {
+                    while (pending.isEmpty() && !closed) {
+                        batchReady.awaitUninterruptibly();
+                    }
+                    if (pending.isEmpty()) {
+                        return; // closed and drained
+                    }
+                    long deadline = System.nanoTime() + maxBatchDelay * 1000000L;
+                    while (pending.size() < maxBatchSize && !closed) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        try {
+                            batchReady.awaitNanos(remaining);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    batch = pending;
+                    pending = new ArrayList<byte[]>();
+                    batchEnd = appendedSeq;
+                } finally {
+                    lock.unlock();
+                }
+
+                boolean written = writeRecords(batch, true);
+
+                lock.lock();
+                try {
+                    if (!written && failedSeq == Long.MAX_VALUE) {
+                        failedSeq = batchEnd - batch.size() + 1;
+                    }
+                    durableSeq = batchEnd; // waiters check failedSeq
+                    batchDurable.signalAll();
+                } finally {
+                    lock.unlock();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
         }
     }
 
     /**
-     * Load log and rebuild KVServer by iterating over log entries. You do not
-     * need to restore the previous cache state (i.e. ignore GETS).
+     * Writes a length-prefixed byte array.
      *
-     * @throws KVException if an error occurs in KVServer (though we expect none)
+     * @param out stream to write to
+     * @param data bytes to write
+     * @throws IOException if the stream cannot be written
      */
-    public void rebuildServer() throws KVException {
-    	loadFromDisk(); // load KVMessages from disk to entries
-    	KVMessage lastMsg = null;
-    	for (KVMessage msg : entries) {
-    		if(msg.getMsgType() == KVConstants.COMMIT) {
-    			if(lastMsg != null) {
-    				if(lastMsg.getMsgType().equals(KVConstants.PUT_REQ)) { // operate put req
-    					kvServer.put(lastMsg.getKey(), lastMsg.getValue());
-    				} else
-    				if(lastMsg.getMsgType().equals(KVConstants.DEL_REQ)) { // operate del req
-    					kvServer.del(lastMsg.getKey());
-    				}
-    			}
-    		}
-    		lastMsg = msg;
-    	}
+    private static void writeBytes(DataOutputStream out, byte[] data)
+            throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Reads a length-prefixed byte array.
+     *
+     * @param in stream to read from
+     * @return the bytes read
+     * @throws EOFException if the stream ends before the array does
+     * @throws IOException if the length is corrupt
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > MAX_RECORD_SIZE) {
+            throw new IOException("corrupt record length " + len);
+        }
+        byte[] data = new byte[len];
+        in.readFully(data);
+        return data;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            if (c != null) {
+                c.close();
+            }
+        } catch (IOException e) {
+            // ignore, best effort
+        }
+    }
+
+    /**
+     * Encodes a single log entry as a checksummed record.
+     *
+     * @param entry KVMessage to encode
+     * @return the record, ready to be appended to the log
+     * @throws IOException if the entry has a type that is never logged
+     */
+    private static byte[] encode(KVMessage entry) throws IOException {
+        int type = -1;
+        for (int i = 0; i < TYPE_CODES.length; ++i) {
+            if (TYPE_CODES[i].equals(entry.getMsgType())) {
+                type = i;
+            }
+        }
+        if (type < 0) {
+            throw new IOException("cannot log message of type " + entry.getMsgType());
+        }
+        byte[] key = entry.getKey() == null ? null : entry.getKey().getBytes(UTF8);
+        byte[] value = entry.getValue() == null ? null : entry.getValue().getBytes(UTF8);
+        int payloadLength = 1 + 8 + 4 + (key == null ? 0 : key.length)
+                              + 4 + (value == null ? 0 : value.length);
+
+        ByteBuffer buf = ByteBuffer.allocate(payloadLength + 8);
+        buf.putInt(payloadLength);
+        buf.put((byte) type);
+        buf.putLong(entry.getTxnID());
+        putField(buf, key);
+        putField(buf, value);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 4, payloadLength);
+        buf.putInt((int) crc.getValue());
+        return buf.array();
+    }
+
+    private static void putField(ByteBuffer buf, byte[] field) {
+        if (field == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(field.length);
+            buf.put(field);
+        }
+    }
+
+    /**
+     * Reads the next record from a log and verifies its checksum.
+     *
+     * @param in stream positioned at the start of a record
+     * @return the payload of the record
+     * @throws EOFException if the stream ends before the record does
+     * @throws IOException if the record is corrupt
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 17 || len > MAX_RECORD_SIZE) {
+            throw new IOException("corrupt record length " + len);
+        }
+        byte[] payload = new byte[len];
+        in.readFully(payload);
+        int checksum = in.readInt();
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, len);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("record checksum mismatch");
+        }
+        return payload;
+    }
+
+    /**
+     * Decodes the payload of a record read by readRecord.
+     *
+     * @param payload payload of a record with a valid checksum
+     * @return the KVMessage stored in the record
+     * @throws IOException if the payload is malformed
+     */
+    private static KVMessage decode(byte[] payload) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        try {
+            int type = buf.get();
+            if (type < 0 || type >= TYPE_CODES.length) {
+                throw new IOException("unknown record type " + type);
+            }
+            KVMessage msg = new KVMessage(TYPE_CODES[type]);
+            msg.setTxnID(buf.getLong());
+            msg.setKey(getField(buf));
+            msg.setValue(getField(buf));
+            return msg;
+        } catch (RuntimeException e) { // lengths pointing outside the payload
+            throw new IOException("malformed record", e);
+        }
+    }
+
+    private static String getField(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        String field = new String(buf.array(), buf.position(), len, UTF8);
+        buf.position(buf.position() + len);
+        return field;
     }
 
 }
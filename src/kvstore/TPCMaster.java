@@ -3,9 +3,18 @@ package kvstore;
 import static kvstore.KVConstants.*;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TPCMaster {
 
@@ -14,8 +23,21 @@ public class TPCMaster {
 
     public static final int TIMEOUT = 3000;
 
+    /* Bounds of the exponential backoff between two sends of a decision */
+    private static final long MIN_RETRY_DELAY = 10;
+    private static final long MAX_RETRY_DELAY = 2000;
+
+    /* Number of lock stripes serializing 2PC operations on the same key */
+    private static final int KEY_LOCK_STRIPES = 1024;
+
     ArrayList<TPCSlaveInfo> slaves;
-    boolean isBlocked;
+    volatile boolean isBlocked;
+    
+    private Lock[] keyLocks;
+    private AtomicLong nextTxnID;
+    
+    /* Runs the per-replica halves of 2PC operations in parallel */
+    private ExecutorService replicaExecutor;
     
     /**
      * Creates TPCMaster, expecting numSlaves slave servers to eventually register
@@ -30,6 +52,20 @@ public class TPCMaster {
         // isBlocked will be false when slaves.size() == numSlaves
         isBlocked = true;
         slaves = new ArrayList<TPCSlaveInfo>();
+        
+        keyLocks = new ReentrantLock[KEY_LOCK_STRIPES];
+        for(int i=0;i<KEY_LOCK_STRIPES;++i)
+        	keyLocks[i] = new ReentrantLock();
+        // start from the clock so IDs are not reused across master restarts
+        nextTxnID = new AtomicLong(System.currentTimeMillis() << 10);
+        replicaExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        	@Override
+        	public Thread newThread(Runnable r) {
+        		Thread t = new Thread(r, "TPCMaster-replica");
+        		t.setDaemon(true);
+        		return t;
+        	}
+        });
     }
 
     /**
@@ -46,7 +82,7 @@ public class TPCMaster {
     	synchronized(slaves) { // NOTE: important to lock slaves!
     		for(int i=0;i<slaves.size();++i) {
     			if(slaves.get(i).getSlaveID() == slave.getSlaveID()) {
-    				slaves.set(i, slave);
+    				slaves.set(i, slave).closeConnections(); // old connections are dead
     				return true;
     			}
     			if(isLessThanUnsigned(slave.getSlaveID(), slaves.get(i).getSlaveID())) {
@@ -153,10 +189,31 @@ public class TPCMaster {
         return slaves.get(pos);
     }
 
+    /**
+     * Get the lock serializing 2PC operations, and replica reads that fill
+     * the cache, on a key. Keys are striped over a fixed set of locks, so
+     * operations on different keys almost always run in parallel.
+     * 
+     * @param key the key of the operation
+     * @return lock for the key
+     */
+    private Lock getKeyLock(String key) {
+    	return keyLocks[(key.hashCode() & 0x7fffffff) % KEY_LOCK_STRIPES];
+    }
+
     /**
      * Perform 2PC operations from the master node perspective. This method
      * contains the bulk of the two-phase commit logic. It performs phase 1
      * and phase 2 with appropriate timeouts and retries.
+     * Operations on different keys run concurrently; every operation gets
+     * its own transaction ID, so slaves can tell the in-flight transactions
+     * apart. Both replicas are contacted in parallel in each phase, and the
+     * first abort vote decides without waiting for the other replica: the
+     * ABORT is sent to it at once, even while its prepare is in progress.
+     * A COMMIT is waited for until both replicas ACK it, as later writes to
+     * the key must reach them after it. An ABORT changes nothing on the
+     * replicas, so it is waited for at most TIMEOUT; a replica that has not
+     * ACKed it by then keeps getting it in the background.
      *
      * See the spec for details on the expected behavior.
      *
@@ -164,7 +221,7 @@ public class TPCMaster {
      * @param isPutReq boolean to distinguish put and del requests
      * @throws KVException if the operation cannot be carried out for any reason
      */
-    public synchronized void handleTPCRequest(KVMessage msg, boolean isPutReq)
+    public void handleTPCRequest(KVMessage msg, boolean isPutReq)
             throws KVException {
     	while(isBlocked) { // make sure blocked before getting enough slaves
 			try {
@@ -175,44 +232,47 @@ public class TPCMaster {
     	}
     	
     	String key = msg.getKey();
-    	Lock lock = masterCache.getLock(key);
+    	long txnID = nextTxnID.incrementAndGet();
+    	msg = new KVMessage(msg);
+    	msg.setTxnID(txnID);
+    	msg.setRequestID(0); // only meaningful on the client's connection
+    	
+    	Lock lock = getKeyLock(key);
     	try {
     		lock.lock();
     		
-    		// phase-1 commit
+    		// phase-1 commit: prepare both replicas concurrently
     		int repInd[] = new int[2];
     		repInd[0] = findFirstReplicaIndex(hashTo64bit(key));
     		repInd[1] = ( repInd[0] + 1 ) % numSlaves;
-    		// TODO: run the following code concurrently
+    		Transaction txn = new Transaction(msg, repInd.length);
+    		ReplicaWorker[] workers = new ReplicaWorker[repInd.length];
+    		for(int i = 0; i < repInd.length; ++ i) {
+    			workers[i] = new ReplicaWorker(txn, i, repInd[i]);
+    			replicaExecutor.execute(workers[i]);
+    		}
+    		
+    		// gather votes as they arrive, the first abort decides
     		boolean commit = true;
     		String errorMsg = null; // denote the error message to return
-    		try {
-    			// sequentially send request to replicas
-    			for(int i = 0; i < repInd.length; ++ i) {
-    				Socket sock = null;
-    				TPCSlaveInfo slave = slaves.get(repInd[i]);
-    				try {
-    					sock = slave.connectHost(TIMEOUT);
-    					msg.sendMessage(sock); // send request
-    					KVMessage resp = new KVMessage(sock); // receive response
-    					if(!KVConstants.READY.equals(resp.getMsgType())) { // not ready
-    						commit = false; // some error occurs
-    						errorMsg = resp.getMessage();
-    					}
-    				} catch(KVException e) {
-    					commit = false; // connection not correct
-    					if(errorMsg == null) // no other error message
-    						errorMsg = e.getKVMessage().getMessage();
-    				} finally {
-    					if(sock != null) {
-    						slave.closeHost(sock);
-    					}
-    				}
+    		long deadline = System.currentTimeMillis() + 2 * TIMEOUT;
+    		for(int i = 0; i < repInd.length && commit; ++ i) {
+    			KVMessage vote = null;
+    			try {
+    				long remaining = deadline - System.currentTimeMillis();
+    				if(remaining > 0)
+    					vote = txn.votes.poll(remaining, TimeUnit.MILLISECONDS);
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    			}
+    			if(vote == null) { // replica did not answer in time
+    				commit = false;
+    				errorMsg = ERROR_SOCKET_TIMEOUT;
+    			}
+    			else if(!KVConstants.READY.equals(vote.getMsgType())) { // not ready
+    				commit = false;
+    				errorMsg = vote.getMessage();
     			}
-    		} catch(Exception e) {
-    			commit = false;
-    			if(errorMsg == null)
-    				errorMsg = e.getMessage();
     		}
     		
     		// phase-2 commit
@@ -221,37 +281,31 @@ public class TPCMaster {
     			decision = new KVMessage(KVConstants.COMMIT);
     			
     			// update Cache
-    			if(isPutReq)
-    				masterCache.put(msg.getKey(), msg.getValue()); // put
-    			else
-    				masterCache.del(msg.getKey()); // del
+    			Lock cacheLock = masterCache.getLock(key);
+    			cacheLock.lock();
+    			try {
+	    			if(isPutReq)
+	    				masterCache.put(msg.getKey(), msg.getValue()); // put
+	    			else
+	    				masterCache.del(msg.getKey()); // del
+    			} finally {
+    				cacheLock.unlock();
+    			}
     		}
     		else decision = new KVMessage(KVConstants.ABORT);
+    		decision.setTxnID(txnID);
     		
-    		for(int i=0;i<repInd.length;++i) {
-    			// NOTE: have to get every time! The object in slaves may be replaced
-    			while(true) { // send decision until receive an response
-        			TPCSlaveInfo slave = slaves.get(repInd[i]);
-    				Socket sock = null;
-    				KVMessage resp = null;
-    				try {
-    					sock = slave.connectHost(TIMEOUT);
-    					decision.sendMessage(sock);
-    					resp = new KVMessage(sock);
-    				} catch(Exception e) {
-    					continue; // ignore and continue
-    				} finally {
-    					if(sock != null)
-    						slave.closeHost(sock);
-    				}
-    				if(KVConstants.ACK.equals(resp.getMsgType()))
-    					break;
-    				
-    				// print to the console
-    				System.err.println("Internal Error: replica replied <"+resp.getMsgType()+"> instead of <ACK> in phase-2 commits!");
-    				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-    			}
+    		// release the workers and wait until both replicas ACK
+    		txn.decide(decision);
+    		if(commit)
+    			txn.awaitAcks();
+    		else {
+    			for(ReplicaWorker worker : workers) // do not wait for a slow prepare
+    				replicaExecutor.execute(worker.deliverNow());
+    			txn.awaitAcks(TIMEOUT);
     		}
+    		if(txn.invalidAck)
+    			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
     		
     		if(!commit) // abort, a Exception should be thrown
     			throw new KVException(errorMsg);
@@ -260,6 +314,16 @@ public class TPCMaster {
     	}
     }
 
+    /**
+     * Get the id of the set of a key in the cache of the master.
+     *
+     * @param  key key of interest
+     * @return set of the key
+     */
+    public int getSetId(String key) {
+        return masterCache.getSetId(key);
+    }
+
     /**
      * Perform GET operation in the following manner:
      * - Try to GET from cache, return immediately if found
@@ -284,30 +348,60 @@ public class TPCMaster {
     	}
     	
     	String key = msg.getKey();
-    	Lock lock = masterCache.getLock(key);
-    	String ret = null;
-    	try {
-    		lock.lock();
-    		ret = masterCache.get(key); // get from cache
-    		if(ret == null) {
-    			TPCSlaveInfo slave = findFirstReplica(key); // primary replica
-    			ret = getFromReplica(msg, slave);
+    	String ret = getFromCache(key);
+    	if(ret == null) {
+    		// hold the key lock so a concurrent write cannot be overwritten
+    		// in the cache by a value read before it committed
+    		Lock keyLock = getKeyLock(key);
+    		keyLock.lock();
+    		try {
+    			ret = getFromCache(key); // may have been filled meanwhile
     			if(ret == null) {
-    				slave = findSuccessor(slave); // secondary replica
-    				ret = getFromReplica(msg, slave);
+	    			TPCSlaveInfo slave = findFirstReplica(key); // primary replica
+	    			ret = getFromReplica(msg, slave);
+	    			if(ret == null) {
+	    				slave = findSuccessor(slave); // secondary replica
+	    				ret = getFromReplica(msg, slave);
+	    			}
+	    			// update Cache
+	    			if(ret != null) {
+	    				Lock cacheLock = masterCache.getLock(key);
+	    				cacheLock.lock();
+	    				try {
+	    					masterCache.put(key, ret);
+	    				} finally {
+	    					cacheLock.unlock();
+	    				}
+	    			}
     			}
-    			// update Cache
-    			if(ret != null)
-    				masterCache.put(key, ret);
+    		} finally {
+    			keyLock.unlock();
     		}
-    	} finally {
-    		lock.unlock();
     	}
         if(ret == null)
         	throw new KVException(KVConstants.ERROR_NO_SUCH_KEY);
         return ret;
     }
     
+    /**
+     * look up a key in the master cache, a hit is served without locking
+     * 
+     * @param key the key to look up
+     * @return the cached value, null if not cached
+     */
+    private String getFromCache(String key) {
+    	String ret = masterCache.getOptimistic(key);
+    	if(ret != null)
+    		return ret;
+    	Lock lock = masterCache.getLock(key);
+    	lock.lock();
+    	try {
+    		return masterCache.get(key);
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+    
     /**
      * added by : Yi Wu
      * perform get request at a replica
@@ -318,21 +412,197 @@ public class TPCMaster {
      */
     private String getFromReplica(KVMessage msg, TPCSlaveInfo slave) {
     	String ret = null;
-    	Socket sock = null;
     	try {
-			sock = slave.connectHost(TIMEOUT);
-			msg.sendMessage(sock); // send request
-			
-			KVMessage resp = new KVMessage(sock);
+			KVMessage resp = slave.exchange(msg, TIMEOUT);
 			if(KVConstants.RESP.equals(resp.getMsgType()) && resp.getValue().length() > 0)
 				ret = resp.getValue();
 		} catch (Exception e) {
 			ret = null;
-		} finally {
-			if(sock != null) {
-				slave.closeHost(sock);
-			}
 		}
 		return ret;
     }
+    
+    /**
+     * State shared between handleTPCRequest and the workers talking to the
+     * replicas of a single 2PC transaction.
+     */
+    private static class Transaction {
+    	final KVMessage prepare;
+    	final BlockingQueue<KVMessage> votes = new LinkedBlockingQueue<KVMessage>();
+    	final CountDownLatch decided = new CountDownLatch(1);
+    	final CountDownLatch acked;
+    	/* whether someone is delivering the decision to each replica */
+    	final AtomicBoolean[] delivering;
+    	volatile KVMessage decision;
+    	volatile boolean invalidAck;
+    	
+    	Transaction(KVMessage prepare, int numReplicas) {
+    		this.prepare = prepare;
+    		this.acked = new CountDownLatch(numReplicas);
+    		this.delivering = new AtomicBoolean[numReplicas];
+    		for(int i = 0; i < numReplicas; ++ i)
+    			delivering[i] = new AtomicBoolean();
+    	}
+    	
+    	void decide(KVMessage decision) {
+    		this.decision = decision;
+    		decided.countDown();
+    	}
+    	
+    	/**
+    	 * @return whether the caller is the one to deliver the decision to
+    	 *         a replica
+    	 */
+    	boolean claimDelivery(int replica) {
+    		return delivering[replica].compareAndSet(false, true);
+    	}
+    	
+    	KVMessage awaitDecision() {
+    		awaitUninterruptibly(decided);
+    		return decision;
+    	}
+    	
+    	void awaitAcks() {
+    		awaitUninterruptibly(acked);
+    	}
+    	
+    	/**
+    	 * @param timeout milliseconds to wait at most
+    	 */
+    	void awaitAcks(long timeout) {
+    		try {
+    			acked.await(timeout, TimeUnit.MILLISECONDS);
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		}
+    	}
+    	
+    	private static void awaitUninterruptibly(CountDownLatch latch) {
+    		boolean interrupted = false;
+    		while(true) {
+    			try {
+    				latch.await();
+    				break;
+    			} catch (InterruptedException e) {
+    				interrupted = true;
+    			}
+    		}
+    		if(interrupted)
+    			Thread.currentThread().interrupt();
+    	}
+    }
+    
+    /**
+     * Runs both phases of a transaction against one replica: sends the
+     * prepare and posts the vote, then waits for the decision and sends it
+     * until the replica ACKs. An ABORT is delivered by deliverNow instead if
+     * the prepare of this replica is still in progress, on another
+     * connection; the replica serves prepares and decisions in separate
+     * lanes, and its TPCLog drops the prepare that comes after its ABORT. A
+     * COMMIT cannot overtake its prepare, as it needs the replica's READY.
+     */
+    private class ReplicaWorker implements Runnable {
+    	private Transaction txn;
+    	private int replica;
+    	private int index;
+    	
+    	/**
+    	 * @param replica position of the replica in the transaction
+    	 * @param index index of the replica in slaves
+    	 */
+    	ReplicaWorker(Transaction txn, int replica, int index) {
+    		this.txn = txn;
+    		this.replica = replica;
+    		this.index = index;
+    	}
+    	
+    	@Override
+    	public void run() {
+    		txn.votes.add(prepare());
+    		deliver(txn.awaitDecision());
+    	}
+    	
+    	/**
+    	 * @return a job delivering the decision, already taken, unless this
+    	 *         worker or another job is delivering it
+    	 */
+    	Runnable deliverNow() {
+    		return new Runnable() {
+    			@Override
+    			public void run() {
+    				deliver(txn.decision);
+    			}
+    		};
+    	}
+    	
+    	private void deliver(KVMessage decision) {
+    		if(!txn.claimDelivery(replica))
+    			return;
+    		try {
+    			commit(decision);
+    		} finally {
+    			txn.acked.countDown();
+    		}
+    	}
+    	
+    	/**
+    	 * @return the vote of the replica, ABORT if it cannot be reached
+    	 */
+    	private KVMessage prepare() {
+    		TPCSlaveInfo slave = slaves.get(index);
+    		try {
+    			return slave.exchange(txn.prepare, TIMEOUT);
+    		} catch(KVException e) {
+    			return new KVMessage(KVConstants.ABORT, e.getKVMessage().getMessage());
+    		} catch(Exception e) {
+    			return new KVMessage(KVConstants.ABORT, e.getMessage());
+    		}
+    	}
+    	
+    	/**
+    	 * Send the decision until the replica ACKs it, backing off
+    	 * exponentially while the replica is unreachable or answers that it
+    	 * cannot take the decision now.
+    	 */
+    	private void commit(KVMessage decision) {
+    		long delay = MIN_RETRY_DELAY;
+    		boolean interrupted = false;
+    		// NOTE: have to get every time! The object in slaves may be replaced
+    		while(true) { // send decision until receive an response
+    			TPCSlaveInfo slave = slaves.get(index);
+    			KVMessage resp = null;
+    			try {
+    				resp = slave.exchange(decision, TIMEOUT);
+    			} catch(Exception e) {
+    				resp = null; // retry
+    			}
+    			if(resp != null && KVConstants.ACK.equals(resp.getMsgType()))
+    				break;
+    			if(resp != null && !isTransientError(resp)) {
+    				// print to the console
+    				System.err.println("Internal Error: replica replied <"+resp.getMsgType()+"> instead of <ACK> in phase-2 commits!");
+    				txn.invalidAck = true;
+    				break;
+    			}
+    			try {
+    				Thread.sleep(delay);
+    			} catch (InterruptedException e) {
+    				interrupted = true; // the decision must still be delivered
+    			}
+    			delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+    		}
+    		if(interrupted)
+    			Thread.currentThread().interrupt();
+    	}
+    	
+    	/**
+    	 * @return whether a response is an error the replica may recover
+    	 *         from: it is overloaded, or cannot write its log
+    	 */
+    	private boolean isTransientError(KVMessage resp) {
+    		return KVConstants.RESP.equals(resp.getMsgType())
+    				&& (KVConstants.ERROR_OVERLOADED.equals(resp.getMessage())
+    					|| KVConstants.ERROR_COULD_NOT_LOG.equals(resp.getMessage()));
+    	}
+    }
 }
@@ -4,16 +4,25 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 /**
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
+ * The requests of the master are serviced in three lanes, each with its own
+ * executor and so its own concurrency limit: phase2 decisions, phase1
+ * prepares, and reads. A burst of reads then cannot delay the decisions
+ * the master holds its locks for. Single-message XML connections are
+ * served as a whole in the prepare lane.
  */
-public class TPCMasterHandler implements NetworkHandler {
+public class TPCMasterHandler implements MessageHandler {
 
     private long slaveID;
     private KVServer kvServer;
     private TPCLog tpcLog;
-    private ThreadPool threadpool;
+    /* lanes of the requests from the master */
+    private JobExecutor decisions;
+    private JobExecutor prepares;
+    private JobExecutor reads;
 
     /**
      * Constructs a TPCMasterHandler with one connection in its ThreadPool
@@ -33,13 +42,48 @@ public class TPCMasterHandler implements NetworkHandler {
      * @param slaveID the ID for this slave server
      * @param kvServer KVServer for this slave
      * @param log the log for this slave
-     * @param connections the number of connections in this slave's ThreadPool
+     * @param connections the number of connections in the ThreadPool of each
+     *        lane of this slave
      */
     public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, int connections) {
+        this(slaveID, kvServer, log, new ThreadPool(connections),
+        		new ThreadPool(connections), new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a TPCMasterHandler running its jobs on an executor, such
+     * as a ThreadPerJobExecutor.
+     *
+     * @param slaveID the ID for this slave server
+     * @param kvServer KVServer for this slave
+     * @param log the log for this slave
+     * @param executor runs the jobs servicing requests from the master, in
+     *        all lanes
+     */
+    public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, JobExecutor executor) {
+        this(slaveID, kvServer, log, executor, executor, executor);
+    }
+
+    /**
+     * Constructs a TPCMasterHandler with an executor for each lane. The
+     * number of threads of each bounds how many of its requests are
+     * serviced at once.
+     *
+     * @param slaveID the ID for this slave server
+     * @param kvServer KVServer for this slave
+     * @param log the log for this slave
+     * @param decisions runs the COMMIT and ABORT decisions of phase2
+     * @param prepares runs the PUT and DEL requests of phase1
+     * @param reads runs the GET requests
+     */
+    public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log,
+    		JobExecutor decisions, JobExecutor prepares, JobExecutor reads) {
         this.slaveID = slaveID;
         this.kvServer = kvServer;
         this.tpcLog = log;
-        this.threadpool = new ThreadPool(connections);
+        this.decisions = decisions;
+        this.prepares = prepares;
+        this.reads = reads;
     }
 
     /**
@@ -89,23 +133,83 @@ public class TPCMasterHandler implements NetworkHandler {
 
     /**
      * Creates a job to service the request on a socket and enqueues that job
-     * in the thread pool. Ignore any InterruptedExceptions.
+     * in the prepare lane. Ignore any InterruptedExceptions.
      *
      * @param master Socket connected to the master with the request
      */
     @Override
     public void handle(Socket master) {
         try {
-			threadpool.addJob(new MasterHandler(master));
+			prepares.addJob(new MasterHandler(master));
 		} catch (InterruptedException e) {
 			// ignore
 		}
     }
 
+    /**
+     * Creates a job to service a request received by a selector-based
+     * SocketServer, or on a reusable connection, and enqueues that job in
+     * the lane of the request, with the cache set of its key as affinity.
+     * Called by an event loop, so the job is never waited for nor run
+     * here: if there is no room for it, it is rejected.
+     *
+     * @param req the request from the master
+     * @param responder sends the response back
+     * @throws RejectedExecutionException if the job cannot be queued at once
+     */
+    @Override
+    public void handle(final KVMessage req, final MessageHandler.Responder responder) {
+    	lane(req).offerJob(new Runnable() {
+    		@Override
+    		public void run() {
+    			responder.respond(serve(req));
+    		}
+    	}, affinity(req));
+    }
+
+    /**
+     * Lane of a request: decisions first, then prepares, then reads and
+     * anything else.
+     */
+    private JobExecutor lane(KVMessage req) {
+    	String type = req.getMsgType();
+    	if(KVConstants.COMMIT.equals(type) || KVConstants.ABORT.equals(type))
+    		return decisions;
+    	if(KVConstants.PUT_REQ.equals(type) || KVConstants.DEL_REQ.equals(type))
+    		return prepares;
+    	return reads;
+    }
+
+    /**
+     * Affinity of a request in the thread pool: the cache set of its key,
+     * or of the key of the prepared request a decision is about. This is
+     * only a hint, looked up when the request is queued: the decision job
+     * looks its prepare up again when it runs. A COMMIT always finds its
+     * prepare here, since the master needs our READY, which is only sent
+     * once the prepare is logged. An ABORT may be queued while its prepare
+     * still waits in the prepare lane; it changes no key, so it goes
+     * anywhere, and the TPCLog drops the prepare if the ABORT is logged
+     * first.
+     */
+    private int affinity(KVMessage req) {
+    	String key = req.getKey();
+    	if(key == null) {
+    		KVMessage prepared = tpcLog.getPreparedEntry(req.getTxnID());
+    		if(prepared == null)
+    			return -1;
+    		key = prepared.getKey();
+    	}
+    	return kvServer.getSetId(key);
+    }
+
     /**
      * Runnable class containing routine to service a message from the master.
+     * A connection either carries a single XML message ended by
+     * shutdownOutput, or the framed or binary messages of a pooled
+     * connection of the master, which are read for as long as the
+     * connection stays open.
      */
-    private class MasterHandler implements Runnable {
+    private class MasterHandler implements Runnable, KVConnection.RequestHandler {
 
         private Socket master;
 
@@ -125,86 +229,127 @@ public class TPCMasterHandler implements NetworkHandler {
          * we are unable to return any response, there is nothing else we can do.
          */
         @Override
-        public void run() {     	
-        	KVMessage req = null;
-        	try {
-				req = new KVMessage(master);
-			} catch (KVException e) {
-				// ignore
-				return ; // nothing can be done
-			}
-        	
-        	KVMessage resp = null;
+        public void run() {
         	try {
-	        	if(KVConstants.PUT_REQ.equals(req.getMsgType())) { // put 
-	        		try {
-	        			if(kvServer.isValidPut(req.getKey(), req.getValue()))
-	        				resp = new KVMessage(KVConstants.READY);
-	        		} catch(KVException e) {
-	        			resp = new KVMessage(KVConstants.ABORT, e.getKVMessage().getMessage());
-	        		}
-	        	} else
-	        	if(KVConstants.DEL_REQ.equals(req.getMsgType())) { // del
-	        		if(kvServer.hasKey(req.getKey()))
-	        			resp = new KVMessage(KVConstants.READY);
-	        		else
-	        			resp = new KVMessage(KVConstants.ABORT, KVConstants.ERROR_NO_SUCH_KEY);
-	        	} else
-	        	if(KVConstants.GET_REQ.equals(req.getMsgType())) { // get
-	        		// only 1 phase, directly call kvServer.get();
-	        		String key = req.getKey();
-	        		String value = null;
-	        		try {
-	        			value = kvServer.get(key);
-	        		} catch (KVException e) {
-	        			value = null; // no such key
-	        		}
-	        		if(value == null) 
-	        			resp = new KVMessage(KVConstants.RESP, KVConstants.ERROR_NO_SUCH_KEY);
-	        		else {
-	        			resp = new KVMessage(KVConstants.RESP);
-	        			resp.setKey(key);
-	        			resp.setValue(value);
-	        		}
-	            } else 
-	            if(KVConstants.ABORT.equals(req.getMsgType())) { // abort decision
-	            	resp = new KVMessage(KVConstants.ACK);
-	            	// we need to do nothing
-	            } else 
-	            if(KVConstants.COMMIT.equals(req.getMsgType())) { // commit decision
-	            	resp = new KVMessage(KVConstants.ACK);
-	            	
-	            	KVMessage last = tpcLog.getLastEntry();
-	            	/*
-	            	 * Note: any exception thrown from the following code
-	            	 * 	may finish this thread.
-	            	 *  In theory, no error should be thrown!
-	            	 */
-	            	if(KVConstants.PUT_REQ.equals(last.getMsgType())) { // phase-1 is put
-	            		kvServer.put(last.getKey(), last.getValue());
-	            	} else
-	            	if(KVConstants.DEL_REQ.equals(last.getMsgType())) { // phase-1 is del
-	            		kvServer.del(last.getKey());
-	            	}
-	            	// otherwise, just ignore and do nothing
-	            } else {
-	            	return ;// illegal msg, ignore
-	            }
-        	} catch (Exception e) {
-        		return; // ignore, best effort
-        	}
-        	
-        	tpcLog.appendAndFlush(req);
-        	
-        	if(resp != null) {
-        		try {
-					resp.sendMessage(master);
-				} catch (KVException e) {
-					// ignore, best effort
-				}
+        		KVConnection.accept(master).serve(TPCMasterHandler.this, this);
+        	} catch (KVException e) {
+        		closeQuietly(master); // closed before sending anything
         	}
         }
 
+        @Override
+        public KVMessage handleRequest(KVMessage req) {
+        	return serve(req);
+        }
+    }
+
+    /**
+     * Processes a request from master, in phase1 or phase2.
+     *
+     * @param req the request
+     * @return the response to send back, null if there is none
+     */
+    private KVMessage serve(KVMessage req) {
+    	if(KVConstants.GET_REQ.equals(req.getMsgType())) { // get
+    		// read fast path: GETs do not change state, so they are never logged
+    		return handleGet(req);
+    	}
+    	
+    	KVMessage resp = null;
+    	try {
+        	if(KVConstants.PUT_REQ.equals(req.getMsgType())) { // put 
+        		try {
+        			if(kvServer.isValidPut(req.getKey(), req.getValue()))
+        				resp = new KVMessage(KVConstants.READY);
+        		} catch(KVException e) {
+        			resp = new KVMessage(KVConstants.ABORT, e.getKVMessage().getMessage());
+        		}
+        	} else
+        	if(KVConstants.DEL_REQ.equals(req.getMsgType())) { // del
+        		if(kvServer.hasKey(req.getKey()))
+        			resp = new KVMessage(KVConstants.READY);
+        		else
+        			resp = new KVMessage(KVConstants.ABORT, KVConstants.ERROR_NO_SUCH_KEY);
+        	} else
+            if(KVConstants.ABORT.equals(req.getMsgType())) { // abort decision
+            	resp = new KVMessage(KVConstants.ACK);
+            	// we need to do nothing
+            } else 
+            if(KVConstants.COMMIT.equals(req.getMsgType())) { // commit decision
+            	resp = new KVMessage(KVConstants.ACK);
+            	
+            	// several transactions may be in flight, find the one being committed.
+            	// a master without transaction IDs decides on the last prepare
+            	KVMessage last = req.getTxnID() != 0
+            			? tpcLog.getPreparedEntry(req.getTxnID())
+            			: tpcLog.getLastEntry();
+            	/*
+            	 * Note: any exception thrown from the following code
+            	 * 	may finish this thread.
+            	 *  In theory, no error should be thrown!
+            	 */
+            	if(last == null) {
+            		// already committed, the master is resending its decision
+            	} else
+            	if(KVConstants.PUT_REQ.equals(last.getMsgType())) { // phase-1 is put
+            		kvServer.put(last.getKey(), last.getValue());
+            	} else
+            	if(KVConstants.DEL_REQ.equals(last.getMsgType())) { // phase-1 is del
+            		// the key may already be gone if a checkpoint saw this commit
+            		if(kvServer.hasKey(last.getKey()))
+            			kvServer.del(last.getKey());
+            	}
+            	// otherwise, just ignore and do nothing
+            } else {
+            	return null;// illegal msg, ignore
+            }
+    	} catch (Exception e) {
+    		return null; // ignore, best effort
+    	}
+    	
+    	try {
+    		if(!tpcLog.appendAndFlush(req)) // a prepare whose ABORT came first
+    			return new KVMessage(KVConstants.ABORT);
+    	} catch (KVException e) {
+    		// not durable: vote abort on a prepare, and answer a decision
+    		// with an error instead of an ACK so that the master sends it again
+    		if(KVConstants.PUT_REQ.equals(req.getMsgType())
+    				|| KVConstants.DEL_REQ.equals(req.getMsgType()))
+    			return new KVMessage(KVConstants.ABORT, e.getKVMessage().getMessage());
+    		return e.getKVMessage();
+    	}
+    	return resp;
+    }
+    
+    /**
+     * Serves a GET from the KVServer. There is only one phase, and
+     * nothing is written to the log.
+     * 
+     * @param req the GET request
+     * @return response with the value, or ERROR_NO_SUCH_KEY
+     */
+    private KVMessage handleGet(KVMessage req) {
+    	String key = req.getKey();
+    	String value = null;
+    	try {
+    		value = kvServer.get(key);
+    	} catch (KVException e) {
+    		value = null; // no such key
+    	}
+    	if(value == null)
+    		return new KVMessage(KVConstants.RESP, KVConstants.ERROR_NO_SUCH_KEY);
+    	KVMessage resp = new KVMessage(KVConstants.RESP);
+    	resp.setKey(key);
+    	resp.setValue(value);
+    	return resp;
+    }
+    
+    private static void closeQuietly(Socket sock) {
+    	try {
+    		sock.close();
+    	} catch (IOException e) {
+    		// ignore, best effort
+    	}
     }
 
 }
@@ -11,7 +11,7 @@ import java.net.Socket;
  */
 public class TPCRegistrationHandler implements NetworkHandler {
 
-    private ThreadPool threadpool;
+    private JobExecutor threadpool;
     private TPCMaster master;
 
     /**
@@ -31,7 +31,18 @@ public class TPCRegistrationHandler implements NetworkHandler {
      * @param connections number of threads in threadPool to service requests
      */
     public TPCRegistrationHandler(TPCMaster master, int connections) {
-        this.threadpool = new ThreadPool(connections);
+        this(master, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a TPCRegistrationHandler running its jobs on an executor,
+     * such as a ThreadPerJobExecutor.
+     *
+     * @param master TPCMaster to register slave with
+     * @param executor runs the jobs servicing requests
+     */
+    public TPCRegistrationHandler(TPCMaster master, JobExecutor executor) {
+        this.threadpool = executor;
         this.master = master;
     }
 
@@ -71,9 +82,11 @@ public class TPCRegistrationHandler implements NetworkHandler {
          */
         @Override
         public void run() {
+        	KVConnection conn = null;
         	KVMessage resp = null;
         	try {
-				KVMessage msg = new KVMessage(slave);
+        		conn = KVConnection.accept(slave); // in the format the slave chose
+				KVMessage msg = conn.receive(0);
 				String addr = msg.getMessage();
 				if(master.registerSlave(new TPCSlaveInfo(addr)))
 					resp = new KVMessage(KVConstants.RESP,"Successfully registered "+addr);
@@ -81,8 +94,9 @@ public class TPCRegistrationHandler implements NetworkHandler {
 				resp = null;
 			}
         	if(resp == null) resp = new KVMessage(KVConstants.ERROR_INVALID_FORMAT);
+        	if(conn == null) return ; // closed before sending anything
         	try {
-				resp.sendMessage(slave);
+				conn.send(resp);
 			} catch (KVException e) {
 				// best effort, do nothing
 			}
@@ -4,6 +4,8 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
 import java.util.regex.*;
 
 /**
@@ -15,6 +17,18 @@ public class TPCSlaveInfo {
     private String hostname;
     private int port;
 
+    /* Connections kept open by default, and how long an unused one is kept */
+    public static final int DEFAULT_MAX_POOL_SIZE = 8;
+    public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+
+    /* idle connections, most recently used first */
+    private LinkedList<Connection> pool = new LinkedList<Connection>();
+    private int maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private boolean closed = false;
+    /* wire format of pooled connections, framed XML or binary */
+    private volatile int wire = KVConnection.BINARY;
+
     /**
      * Construct a TPCSlaveInfo to represent a slave server.
      *
@@ -51,21 +65,31 @@ public class TPCSlaveInfo {
     }
 
     /**
-     * Create and connect a socket within a certain timeout.
+     * Create and connect a socket within a certain timeout. The socket has
+     * a channel, so that a pooled connection closed by the slave can be
+     * told apart without blocking.
      *
      * @return Socket object connected to SlaveServer, with timeout set
      * @throws KVException ERROR_SOCKET_TIMEOUT, ERROR_COULD_NOT_CREATE_SOCKET,
      *         or ERROR_COULD_NOT_CONNECT
      */
     public Socket connectHost(int timeout) throws KVException {
-    	Socket socket = new Socket();
+    	Socket socket;
+    	try {
+    		socket = SocketChannel.open().socket();
+    	} catch (IOException e) {
+    		throw new KVException(KVConstants.ERROR_COULD_NOT_CREATE_SOCKET);
+    	}
     	try {
 			socket.connect(new InetSocketAddress(hostname, port), timeout);
 		} catch (SocketTimeoutException e) {
+			closeHost(socket);
 			throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
 		} catch (IOException e) {
+			closeHost(socket);
 			throw new KVException(KVConstants.ERROR_COULD_NOT_CONNECT);
 		} catch (Exception e) {
+			closeHost(socket);
 			throw new KVException(KVConstants.ERROR_COULD_NOT_CREATE_SOCKET);
 		}
         return socket;
@@ -84,4 +108,183 @@ public class TPCSlaveInfo {
 			// ignore, best effort
 		}
     }
+
+    /**
+     * Set the limits of the connection pool. Idle connections beyond
+     * maxPoolSize are closed, as are connections unused for idleTimeout.
+     *
+     * @param maxPoolSize most idle connections kept open, 0 disables pooling
+     * @param idleTimeout milliseconds an idle connection is kept open
+     */
+    public synchronized void setPoolLimits(int maxPoolSize, int idleTimeout) {
+    	this.maxPoolSize = maxPoolSize;
+    	this.idleTimeout = idleTimeout;
+    	evictIdle(System.currentTimeMillis());
+    }
+
+    /**
+     * Set the wire format of new pooled connections.
+     *
+     * @param wire KVConnection.FRAMED_XML or KVConnection.BINARY
+     */
+    public void setWireFormat(int wire) {
+    	if(wire != KVConnection.FRAMED_XML && wire != KVConnection.BINARY)
+    		throw new IllegalArgumentException("pooled connections must be reusable");
+    	this.wire = wire;
+    }
+
+    /**
+     * Send a request to the slave and receive its response over a pooled
+     * connection, in the binary encoding unless set otherwise. A connection
+     * that fails is closed; if it had been reused from the pool, the slave
+     * may have closed it meanwhile, so the exchange is retried once on a new
+     * connection. Only when the slave cannot have acted on the request,
+     * though: either it could not be sent, or it is a GET or a decision,
+     * which the slave may safely receive twice. A prepare that was sent but
+     * not answered is never sent again here.
+     *
+     * @param req the request
+     * @param timeout milliseconds to connect and to wait for the response,
+     *        0 to wait for the response without limit
+     * @return the response of the slave
+     * @throws KVException any error of connectHost, sending or receiving
+     */
+    public KVMessage exchange(KVMessage req, int timeout) throws KVException {
+    	Connection conn = borrowConnection(timeout);
+    	try {
+    		return exchange(conn, req, timeout);
+    	} catch (KVException e) {
+    		if(!conn.reused || !(isSendError(e) || (isIdempotent(req) && isReceiveError(e))))
+    			throw e;
+    	}
+    	return exchange(newConnection(timeout), req, timeout);
+    }
+
+    /**
+     * Close every idle connection and stop pooling, used when this slave
+     * is replaced after registering again.
+     */
+    public void closeConnections() {
+    	LinkedList<Connection> idle = null;
+    	synchronized(this) {
+    		closed = true;
+    		idle = pool;
+    		pool = new LinkedList<Connection>();
+    	}
+    	for(Connection conn : idle)
+    		conn.conn.close();
+    }
+
+    /**
+     * Sends a request on a connection and returns it to the pool once the
+     * response is received, or closes it on any error.
+     */
+    private KVMessage exchange(Connection conn, KVMessage req, int timeout) throws KVException {
+    	boolean ok = false;
+    	try {
+    		conn.conn.send(req);
+    		KVMessage resp = conn.conn.receive(timeout);
+    		ok = true;
+    		return resp;
+    	} finally {
+    		if(ok) releaseConnection(conn);
+    		else conn.conn.close();
+    	}
+    }
+
+    /**
+     * Take the most recently used healthy connection from the pool, or
+     * connect a new one. Connections found expired or unhealthy are closed.
+     */
+    private Connection borrowConnection(int timeout) throws KVException {
+    	long now = System.currentTimeMillis();
+    	while(true) {
+    		Connection conn = null;
+    		synchronized(this) {
+    			evictIdle(now);
+    			conn = pool.poll();
+    		}
+    		if(conn == null)
+    			return newConnection(timeout);
+    		if(conn.conn.isHealthy()) {
+    			conn.reused = true;
+    			return conn;
+    		}
+    		conn.conn.close();
+    	}
+    }
+
+    /**
+     * Put a connection back into the pool, or close it if the pool is full.
+     */
+    private void releaseConnection(Connection conn) {
+    	long now = System.currentTimeMillis();
+    	conn.lastUsed = now;
+    	synchronized(this) {
+    		if(!closed && pool.size() < maxPoolSize) {
+    			pool.addFirst(conn);
+    			conn = null;
+    		}
+    		evictIdle(now);
+    	}
+    	if(conn != null)
+    		conn.conn.close();
+    }
+
+    /**
+     * Close the connections that have been idle for too long. The pool is
+     * ordered by use, so they are all at its end. Caller holds the lock.
+     */
+    private void evictIdle(long now) {
+    	while(pool.size() > maxPoolSize
+    			|| (!pool.isEmpty() && now - pool.getLast().lastUsed > idleTimeout))
+    		pool.removeLast().conn.close();
+    }
+
+    private Connection newConnection(int timeout) throws KVException {
+    	Socket sock = connectHost(timeout);
+    	try {
+    		sock.setTcpNoDelay(true); // small request-response messages
+    	} catch (IOException e) {
+    		closeHost(sock);
+    		throw new KVException(KVConstants.ERROR_COULD_NOT_CREATE_SOCKET);
+    	}
+    	try {
+    		return new Connection(KVConnection.open(sock, wire));
+    	} catch (KVException e) {
+    		closeHost(sock);
+    		throw e;
+    	}
+    }
+
+    private static boolean isSendError(KVException e) {
+    	return KVConstants.ERROR_COULD_NOT_SEND_DATA.equals(e.getKVMessage().getMessage());
+    }
+
+    private static boolean isReceiveError(KVException e) {
+    	return KVConstants.ERROR_COULD_NOT_RECEIVE_DATA.equals(e.getKVMessage().getMessage());
+    }
+
+    /**
+     * Whether the slave may receive a request twice: reads, and decisions,
+     * which it answers the same way each time.
+     */
+    private static boolean isIdempotent(KVMessage req) {
+    	String type = req.getMsgType();
+    	return KVConstants.GET_REQ.equals(type) || KVConstants.COMMIT.equals(type)
+    			|| KVConstants.ABORT.equals(type);
+    }
+
+    /**
+     * A pooled connection to the slave.
+     */
+    private static class Connection {
+    	KVConnection conn;
+    	long lastUsed;
+    	boolean reused = false;
+
+    	Connection(KVConnection conn) {
+    		this.conn = conn;
+    	}
+    }
 }
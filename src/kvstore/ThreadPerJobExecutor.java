@@ -0,0 +1,120 @@
+package kvstore;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Runs every job on a new thread of its own, so the blocking code of the
+ * handlers scales with the number of concurrent requests without sizing a
+ * pool. Virtual threads are used if the JVM running us has them (Java 21,
+ * or 19 and 20 with --enable-preview); otherwise, or if asked to, jobs get
+ * daemon platform threads. Which it is gets decided, and logged, when the
+ * executor is constructed.
+ */
+public class ThreadPerJobExecutor implements JobExecutor {
+
+    private String name;
+    /* Thread.startVirtualThread(Runnable), null to use platform threads */
+    private Method startVirtualThread = null;
+
+    /**
+     * Constructs a ThreadPerJobExecutor using virtual threads if possible.
+     *
+     * @param name name of the platform threads, when used
+     */
+    public ThreadPerJobExecutor(String name) {
+        this(name, true);
+    }
+
+    /**
+     * Constructs a ThreadPerJobExecutor.
+     *
+     * @param name name of the platform threads, when used
+     * @param preferVirtual whether to use virtual threads if possible
+     */
+    public ThreadPerJobExecutor(String name, boolean preferVirtual) {
+        this.name = name;
+        String mode = "platform threads";
+        if(preferVirtual) {
+        	try {
+        		startVirtualThread = findStartVirtualThread();
+        		mode = "virtual threads";
+        	} catch (InvocationTargetException e) { // a disabled preview
+        		mode += " (no virtual threads: " + e.getCause() + ")";
+        	} catch (Exception e) {
+        		mode += " (no virtual threads: " + e + ")";
+        	}
+        }
+        System.err.println("ThreadPerJobExecutor " + name + ": jobs run on " + mode);
+    }
+
+    /**
+     * Whether jobs run on virtual threads.
+     *
+     * @return false if they run on platform threads
+     */
+    public boolean isVirtual() {
+        return startVirtualThread != null;
+    }
+
+    /**
+     * Start a new thread executing a job.
+     *
+     * @param r job that has to be executed
+     */
+    @Override
+    public void addJob(Runnable r) {
+    	if(startVirtualThread != null) {
+    		try {
+    			startVirtualThread.invoke(null, r);
+    			return ;
+    		} catch (Exception e) {
+    			// checked when constructed, fall back to a platform thread
+    		}
+    	}
+    	Thread thread = new Thread(r, name);
+    	thread.setDaemon(true);
+    	thread.start();
+    }
+
+    /**
+     * Start a new thread executing a job. Each job has its own thread, so
+     * the affinity is ignored.
+     *
+     * @param r job that has to be executed
+     * @param affinity ignored
+     */
+    @Override
+    public void addJob(Runnable r, int affinity) {
+    	addJob(r);
+    }
+
+    /**
+     * Start a new thread executing a job, which never waits.
+     *
+     * @param r job that has to be executed
+     * @param affinity ignored
+     */
+    @Override
+    public void offerJob(Runnable r, int affinity) {
+    	addJob(r);
+    }
+
+    /**
+     * Look up Thread.startVirtualThread, and check that it works: it throws
+     * UnsupportedOperationException on JVMs where it is a disabled preview.
+     *
+     * @throws Exception NoSuchMethodException before Java 19, or whatever
+     *         starting a virtual thread throws
+     */
+    private static Method findStartVirtualThread() throws Exception {
+    	Method start = Thread.class.getMethod("startVirtualThread", Runnable.class);
+    	start.invoke(null, new Runnable() {
+    		@Override
+    		public void run() {
+    			// nothing, just checking
+    		}
+    	});
+    	return start;
+    }
+}
@@ -1,55 +1,507 @@
 package kvstore;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A fixed number of threads executing jobs from a bounded queue. Idle
+ * threads block until a job arrives. When the queue is full, addJob follows
+ * the rejection policy of the pool:
+ * - BLOCK: wait for room in the queue, pushing back on the caller
+ * - REJECT: throw a RejectedExecutionException at once
+ * - CALLER_RUNS: execute the job in the calling thread
+ * A pool that is shut down rejects new jobs, and its threads exit once the
+ * queued ones are done.
+ * In key-affine mode, a job added with an affinity, such as the cache set
+ * of the key of a request, goes to the queue of the thread chosen by that
+ * affinity. Jobs of the same set then run one after the other on the same
+ * thread instead of contending for the lock of the set. An idle thread
+ * steals from the front of the longest queue holding at least
+ * STEAL_THRESHOLD jobs, so a busy set does not leave the other threads idle.
+ * No thread, the owner included, takes a job while another job of the same
+ * affinity runs, so the jobs of an affinity still run one at a time and in
+ * the order they were added.
+ * The pool records the length of the queue each job finds, how long each
+ * job waits in the queue and runs, in microseconds, and how many jobs it
+ * rejects or has the caller run. They can be read at any time, see
+ * getStats.
+ */
+public class ThreadPool implements JobExecutor {
 
-public class ThreadPool {
+    public static final int BLOCK = 0;
+    public static final int REJECT = 1;
+    public static final int CALLER_RUNS = 2;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int STEAL_THRESHOLD = 4;
 
     /* Array of threads in the threadpool */
     private Thread threads[];
-    LinkedList<Runnable> queue;
+    /* jobs for any thread, and jobs for each thread in key-affine mode */
+    private ArrayDeque<Job> queue;
+    private ArrayDeque<Job>[] affineQueues;
+    /* affinity of the job each thread runs, -1 for none */
+    private int[] running;
+    private int queued = 0;
+    private int capacity;
+    private int policy;
+    private volatile boolean keyAffine = false;
+
+    private ReentrantLock lock = new ReentrantLock();
+    /* each thread waits for jobs on its own condition, while idle */
+    private Condition[] wakeups;
+    private boolean[] idle;
+    private Condition notFull = lock.newCondition();
+    private Condition terminated = lock.newCondition();
+    private boolean shutdown = false;
+    private int liveThreads;
+
+    private Histogram queueLengths = new Histogram();
+    private Histogram waitTimes = new Histogram();
+    private Histogram serviceTimes = new Histogram();
+    private AtomicLong rejections = new AtomicLong();
+    private AtomicLong callerRuns = new AtomicLong();
 
 
     /**
-     * Constructs a Threadpool with a certain number of threads.
+     * Constructs a Threadpool with a certain number of threads, and a queue
+     * of DEFAULT_QUEUE_CAPACITY jobs that blocks callers when full.
      *
      * @param size number of threads in the thread pool
      */
     public ThreadPool(int size) {
-        threads = new Thread[size];
+        this(size, DEFAULT_QUEUE_CAPACITY, BLOCK);
+    }
 
-        queue = new LinkedList<Runnable>();
-        for(int i=0;i<size;++i)
-        	threads[i] = new WorkerThread(this);
+    /**
+     * Constructs a Threadpool with a certain number of threads and a bounded
+     * queue.
+     *
+     * @param size number of threads in the thread pool
+     * @param capacity maximum number of jobs waiting in the queue
+     * @param policy what addJob does when the queue is full: BLOCK, REJECT
+     *        or CALLER_RUNS
+     */
+    public ThreadPool(int size, int capacity, int policy) {
+        if(size <= 0 || capacity <= 0 || policy < BLOCK || policy > CALLER_RUNS)
+            throw new IllegalArgumentException();
+        threads = new Thread[size];
+        queue = new ArrayDeque<Job>();
+        @SuppressWarnings("unchecked")
+        ArrayDeque<Job>[] queues = (ArrayDeque<Job>[]) new ArrayDeque<?>[size];
+        affineQueues = queues;
+        running = new int[size];
+        wakeups = new Condition[size];
+        idle = new boolean[size];
+        this.capacity = capacity;
+        this.policy = policy;
+        liveThreads = size;
+        for(int i=0;i<size;++i) {
+        	affineQueues[i] = new ArrayDeque<Job>();
+        	running[i] = -1;
+        	wakeups[i] = lock.newCondition();
+        	threads[i] = new WorkerThread(this, i);
+        }
         for(int i=0;i<size;++i)
         	threads[i].start();
     }
 
+    /**
+     * Switch key-affine scheduling on or off, see addJob(Runnable, int).
+     *
+     * @param keyAffine whether jobs with an affinity go to the queue of
+     *        their thread
+     */
+    public void setKeyAffine(boolean keyAffine) {
+        this.keyAffine = keyAffine;
+    }
+
     /**
      * Add a job to the queue of jobs that have to be executed. As soon as a
      * thread is available, the thread will retrieve a job from this queue if
-     * if one exists and start processing it.
+     * if one exists and start processing it. If the queue is full, follows
+     * the rejection policy of the pool.
      *
      * @param r job that has to be executed
-     * @throws InterruptedException if thread is interrupted while in blocked
-     *         state. Your implementation may or may not actually throw this.
+     * @throws InterruptedException if thread is interrupted while blocked
+     *         waiting for room in the queue
+     * @throws RejectedExecutionException if the pool is shut down, or its
+     *         queue is full and its policy is REJECT
      */
+    @Override
     public void addJob(Runnable r) throws InterruptedException {
-    	queue.add(r);
+    	addJob(r, -1);
+    }
+
+    /**
+     * Add a job with an affinity. In key-affine mode, it goes to the queue
+     * of thread affinity % size, behind the other jobs of the same affinity;
+     * otherwise, or without affinity, as addJob(Runnable).
+     *
+     * @param r job that has to be executed
+     * @param affinity non-negative affinity of the job, such as the cache set
+     *        of its key, or -1 for none
+     * @throws InterruptedException as addJob(Runnable)
+     * @throws RejectedExecutionException as addJob(Runnable)
+     */
+    @Override
+    public void addJob(Runnable r, int affinity) throws InterruptedException {
+    	if(!addJob(r, affinity, policy)) {
+    		callerRuns.incrementAndGet();
+    		r.run(); // CALLER_RUNS, outside of the lock
+    	}
     }
 
     /**
-     * Block until a job is present in the queue and retrieve the job
-     * @return A runnable task that has to be executed
+     * Add a job with an affinity, rejecting it if the queue is full, as with
+     * the REJECT policy, whatever the policy of the pool.
+     *
+     * @param r job that has to be executed
+     * @param affinity as addJob(Runnable, int)
+     * @throws RejectedExecutionException if the pool is shut down, or its
+     *         queue is full
+     */
+    @Override
+    public void offerJob(Runnable r, int affinity) {
+    	try {
+    		addJob(r, affinity, REJECT);
+    	} catch (InterruptedException e) {
+    		// not thrown without waiting
+    	}
+    }
+
+    /**
+     * Queue a job, or apply a rejection policy to it if the queue is full.
+     *
+     * @return false if the caller has to run the job, as CALLER_RUNS
+     */
+    private boolean addJob(Runnable r, int affinity, int policy) throws InterruptedException {
+    	lock.lock();
+    	try {
+    		while(true) {
+    			if(shutdown) {
+    				rejections.incrementAndGet();
+    				throw new RejectedExecutionException("ThreadPool is shut down");
+    			}
+    			if(queued < capacity) {
+    				queueLengths.record(queued);
+    				enqueue(new Job(r, keyAffine ? affinity : -1));
+    				return true;
+    			}
+    			if(policy == REJECT) {
+    				rejections.incrementAndGet();
+    				throw new RejectedExecutionException("ThreadPool queue is full");
+    			}
+    			if(policy == CALLER_RUNS)
+    				return false;
+    			notFull.await();
+    		}
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Queue a job and wake a thread to run it: the thread of its affinity,
+     * or an idle thread that can take or steal it. Called with the lock held.
+     */
+    private void enqueue(Job r) {
+    	++ queued;
+    	if(r.affinity < 0) {
+    		queue.add(r);
+    		wakeIdle();
+    		return ;
+    	}
+    	int owner = r.affinity % threads.length;
+    	affineQueues[owner].add(r);
+    	if(idle[owner])
+    		wake(owner);
+    	else if(affineQueues[owner].size() >= STEAL_THRESHOLD)
+    		wakeIdle();
+    }
+
+    private void wake(int thread) {
+    	idle[thread] = false;
+    	wakeups[thread].signal();
+    }
+
+    private void wakeIdle() {
+    	for(int i = 0; i < threads.length; ++ i) {
+    		if(idle[i]) {
+    			wake(i);
+    			return ;
+    		}
+    	}
+    }
+
+    /**
+     * Block until a job is present in the queue and retrieve the job: from
+     * the queue of the thread first, then from the shared one, else stolen
+     * from the longest queue of another thread. The job the thread ran last
+     * is done, so the jobs of its affinity can run again.
+     * @param self index of the calling thread
+     * @return A runnable task that has to be executed, null once the pool
+     *         is shut down and the queues are empty
      * @throws InterruptedException if thread is interrupted while in blocked
-     *         state. Your implementation may or may not actually throw this.
-     */
-    private Runnable getJob() throws InterruptedException {
-    	synchronized(this) {
-        	if(queue.isEmpty())
-        		return null;
-        	else
-        		return queue.remove();
+     *         state, by shutdownNow
+     */
+    private Job getJob(int self) throws InterruptedException {
+    	lock.lock();
+    	try {
+    		int done = running[self];
+    		running[self] = -1;
+    		if(done >= 0) {
+    			// the next jobs of a stolen affinity wait for their owner
+    			int owner = done % threads.length;
+    			if(owner != self && idle[owner] && !affineQueues[owner].isEmpty())
+    				wake(owner);
+    		}
+    		while(true) {
+    			Job r = take(affineQueues[self]);
+    			if(r == null)
+    				r = queue.poll();
+    			if(r == null)
+    				r = steal(self);
+    			if(r != null) {
+    				running[self] = r.affinity;
+    				-- queued;
+    				notFull.signal();
+    				if(shutdown && queued == 0)
+    					wakeAll();
+    				return r;
+    			}
+    			// jobs held back by a running one of their affinity keep
+    			// the threads alive after a shutdown
+    			if(shutdown && queued == 0)
+    				return null;
+    			idle[self] = true;
+    			try {
+    				wakeups[self].await();
+    			} finally {
+    				idle[self] = false;
+    			}
+    		}
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Take the oldest job of the longest queue of another thread, if it
+     * holds at least STEAL_THRESHOLD jobs. Called with the lock held.
+     */
+    private Job steal(int self) {
+    	ArrayDeque<Job> victim = null;
+    	for(int i = 0; i < affineQueues.length; ++ i) {
+    		ArrayDeque<Job> q = affineQueues[i];
+    		if(i != self && q.size() >= STEAL_THRESHOLD && (victim == null || q.size() > victim.size()))
+    			victim = q;
+    	}
+    	return victim == null ? null : take(victim);
+    }
+
+    /**
+     * Remove the oldest job of a queue whose affinity no thread runs. The
+     * jobs of a running affinity are all skipped, so the one taken is the
+     * oldest of its affinity. Called with the lock held.
+     */
+    private Job take(ArrayDeque<Job> q) {
+    	Iterator<Job> it = q.iterator();
+    	while(it.hasNext()) {
+    		Job r = it.next();
+    		if(!isRunning(r.affinity)) {
+    			it.remove();
+    			return r;
+    		}
+    	}
+    	return null;
+    }
+
+    private boolean isRunning(int affinity) {
+    	for(int a : running) {
+    		if(a == affinity)
+    			return true;
+    	}
+    	return false;
+    }
+
+    /**
+     * Stop accepting jobs. The jobs already queued are still executed, then
+     * the threads exit. Does not wait for them, see awaitTermination.
+     */
+    public void shutdown() {
+    	lock.lock();
+    	try {
+    		shutdown = true;
+    		wakeAll();
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Stop accepting jobs, drop the queued ones and interrupt the threads.
+     *
+     * @return the jobs that were dropped
+     */
+    public List<Runnable> shutdownNow() {
+    	List<Runnable> dropped;
+    	lock.lock();
+    	try {
+    		shutdown = true;
+    		dropped = new ArrayList<Runnable>();
+    		for(Job job : queue)
+    			dropped.add(job.task);
+    		queue.clear();
+    		for(ArrayDeque<Job> q : affineQueues) {
+    			for(Job job : q)
+    				dropped.add(job.task);
+    			q.clear();
+    		}
+    		queued = 0;
+    		wakeAll();
+    	} finally {
+    		lock.unlock();
+    	}
+    	for(Thread thread : threads)
+    		thread.interrupt();
+    	return dropped;
+    }
+
+    /**
+     * Wait for the threads to exit after a shutdown.
+     *
+     * @param timeout milliseconds to wait at most
+     * @return true if all the threads exited, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+    	long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+    	lock.lock();
+    	try {
+    		while(liveThreads > 0) {
+    			if(nanos <= 0)
+    				return false;
+    			nanos = terminated.awaitNanos(nanos);
+    		}
+    		return true;
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    public boolean isShutdown() {
+    	lock.lock();
+    	try {
+    		return shutdown;
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Get the number of jobs waiting in the queues.
+     *
+     * @return the current length of the queue
+     */
+    public int getQueueLength() {
+    	lock.lock();
+    	try {
+    		return queued;
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * @return the lengths of the queue found by the jobs queued
+     */
+    public Histogram getQueueLengths() {
+        return queueLengths;
+    }
+
+    /**
+     * @return the microseconds jobs waited in the queue before they ran
+     */
+    public Histogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    /**
+     * @return the microseconds jobs of the threads took to run
+     */
+    public Histogram getServiceTimes() {
+        return serviceTimes;
+    }
+
+    /**
+     * @return the number of jobs rejected, while full or shut down
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * @return the number of jobs the caller ran, as the queue was full
+     */
+    public long getCallerRuns() {
+        return callerRuns.get();
+    }
+
+    /**
+     * Get all the statistics of the pool, one "name value" line each, in a
+     * form that is easy to scrape.
+     *
+     * @param name prefix of the statistics, to tell pools apart
+     * @return the statistics
+     */
+    public String getStats(String name) {
+    	StringBuilder sb = new StringBuilder();
+    	sb.append(name).append("_threads ").append(threads.length).append('\n');
+    	sb.append(name).append("_queue_length ").append(getQueueLength()).append('\n');
+    	queueLengths.appendTo(sb, name + "_queue_length_seen");
+    	waitTimes.appendTo(sb, name + "_wait_us");
+    	serviceTimes.appendTo(sb, name + "_service_us");
+    	sb.append(name).append("_rejections ").append(getRejections()).append('\n');
+    	sb.append(name).append("_caller_runs ").append(getCallerRuns()).append('\n');
+    	return sb.toString();
+    }
+
+    private void wakeAll() {
+    	for(Condition wakeup : wakeups)
+    		wakeup.signalAll();
+    	notFull.signalAll();
+    }
+
+    private void threadExited() {
+    	lock.lock();
+    	try {
+    		if(-- liveThreads == 0)
+    			terminated.signalAll();
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * A queued job, with its affinity and the time it was queued at.
+     */
+    private static final class Job {
+
+        private final Runnable task;
+        private final int affinity;
+        private final long queuedAt = System.nanoTime();
+
+        Job(Runnable task, int affinity) {
+            this.task = task;
+            this.affinity = affinity;
         }
     }
 
@@ -59,30 +511,42 @@ public class ThreadPool {
     private class WorkerThread extends Thread {
 
         private ThreadPool threadPool;
+        private int index;
 
         /**
          * Constructs a thread for this particular ThreadPool.
          *
          * @param pool the ThreadPool containing this thread
+         * @param index index of the thread in the pool
          */
-        public WorkerThread(ThreadPool pool) {
+        public WorkerThread(ThreadPool pool, int index) {
             threadPool = pool;
+            this.index = index;
         }
 
         /**
-         * Scan for and execute tasks.
+         * Execute tasks until the pool is shut down. A task that throws
+         * does not take the thread down with it.
          */
         @Override
         public void run() {
-            while(true) {
-            	try {
-					Runnable task = threadPool.getJob();
-					if(task != null)
-						task.run();
-				} catch (InterruptedException e) {
-					return ;
-				}
-            }
+        	try {
+        		Job job;
+        		while((job = threadPool.getJob(index)) != null) {
+        			long start = System.nanoTime();
+        			waitTimes.record((start - job.queuedAt) / 1000);
+        			try {
+        				job.task.run();
+        			} catch (RuntimeException e) {
+        				// best effort, go on with the next task
+        			}
+        			serviceTimes.record((System.nanoTime() - start) / 1000);
+        		}
+        	} catch (InterruptedException e) {
+        		// shutdownNow
+        	} finally {
+        		threadPool.threadExited();
+        	}
         }
     }
 }
@@ -0,0 +1,94 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * TinyLFU admission: a new key is only cached if it has been read more
+ * often, recently, than the victim it would evict, so a scan of keys read
+ * once cannot flush the hot keys out of a set.
+ * Reads are counted in a count-min sketch of small saturating counters,
+ * all halved every sampleSize reads so that old popularity fades. Counts
+ * are approximate: hash collisions may only overestimate them, and
+ * concurrent updates may drop a few, which is harmless here.
+ */
+public class TinyLFUPolicy implements CachePolicy {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+
+    private AtomicIntegerArray counters;
+    private int width;
+    private int sampleSize;
+    private AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * Constructs a TinyLFUPolicy for a cache of a given capacity.
+     *
+     * @param capacity number of entries of the cache, numSets times
+     *        maxElemsPerSet
+     */
+    public TinyLFUPolicy(int capacity) {
+    	capacity = Math.max(capacity, 16);
+    	width = Integer.highestOneBit(capacity - 1) << 1; // a power of two
+    	counters = new AtomicIntegerArray(DEPTH * width);
+    	sampleSize = 10 * capacity;
+    }
+
+    @Override
+    public void recordAccess(String key) {
+    	int h = spread(key.hashCode());
+    	boolean added = false;
+    	for(int i = 0; i < DEPTH; ++ i) {
+    		int index = index(h, i);
+    		int count;
+    		while((count = counters.get(index)) < MAX_COUNT) {
+    			if(counters.compareAndSet(index, count, count + 1)) {
+    				added = true;
+    				break;
+    			}
+    		}
+    	}
+    	// the thread reaching the sample size ages the counts
+    	if(added && additions.incrementAndGet() == sampleSize) {
+    		for(int i = 0; i < counters.length(); ++ i)
+    			counters.set(i, counters.get(i) >>> 1);
+    		additions.addAndGet(-sampleSize);
+    	}
+    }
+
+    @Override
+    public boolean admit(String candidate, String victim) {
+        return frequency(candidate) > frequency(victim);
+    }
+
+    /**
+     * Estimate how often a key was read recently.
+     *
+     * @param key the key
+     * @return estimated reads, at most 15
+     */
+    public int frequency(String key) {
+    	int h = spread(key.hashCode());
+    	int min = MAX_COUNT;
+    	for(int i = 0; i < DEPTH; ++ i)
+    		min = Math.min(min, counters.get(index(h, i)));
+    	return min;
+    }
+
+    /**
+     * Counter of a hash in row i, rows use independent-enough hashes.
+     */
+    private int index(int h, int i) {
+    	int hash = spread(h + i * 0x9E3779B9);
+    	return i * width + (hash & (width - 1));
+    }
+
+    private static int spread(int h) {
+    	h ^= h >>> 16;
+    	h *= 0x85EBCA6B;
+    	h ^= h >>> 13;
+    	h *= 0xC2B2AE35;
+    	return h ^ (h >>> 16);
+    }
+}
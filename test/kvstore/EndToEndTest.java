@@ -2,6 +2,10 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
 import org.junit.Test;
 
 public class EndToEndTest extends EndToEndTemplate {
@@ -19,6 +23,150 @@ public class EndToEndTest extends EndToEndTemplate {
         assertEquals(client.get("a"), "2");  
     }
 	
+	@Test
+    public void testBinaryClient() throws KVException {
+		client.setWireFormat(KVConnection.BINARY);
+		client.put("bin", "\u00e9t\u00e9 <&>");
+		assertEquals("\u00e9t\u00e9 <&>", client.get("bin"));
+		client.del("bin");
+		try {
+			client.get("bin");
+			fail("NO_SUCH_KEY Exception not received!");
+		} catch(KVException e) {
+			assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+		}
+    }
+	
+	@Test
+    public void testBatch() throws KVException {
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		for(int i = 0; i < 50; ++i)
+			entries.put("key" + i, "value" + i);
+		client.mput(entries);
+		assertEquals("value7", client.get("key7"));
+
+		Map<String, String> found = client.mget(Arrays.asList("key3", "missing", "key1"));
+		assertEquals(Arrays.asList("key3", "key1"), new ArrayList<String>(found.keySet()));
+		assertEquals("value1", found.get("key1"));
+
+		client.setWireFormat(KVConnection.BINARY);
+		client.mdel(Arrays.asList("key1", "key3", "missing"));
+		found = client.mget(entries.keySet());
+		assertEquals(48, found.size());
+		assertFalse(found.containsKey("key1"));
+		assertTrue(client.mget(Arrays.asList("key1")).isEmpty());
+    }
+
+	@Test(timeout = 30000)
+    public void testPipelinedClient() throws Exception {
+		client.setWireFormat(KVConnection.FRAMED_XML);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; ++i) {
+			final String key = "pipelined" + i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int j = 0; j < 50; ++j) {
+							client.put(key, Integer.toString(j));
+							assertEquals(Integer.toString(j), client.get(key));
+						}
+					} catch (Throwable t) {
+						errors.add(t);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		client.close();
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals("49", client.get("pipelined0"));
+    }
+	
+	@Test(timeout = 30000)
+    public void testIdleConnectionsHoldNoThread() throws Exception {
+		String hostname = InetAddress.getLocalHost().getHostAddress();
+		client.setWireFormat(KVConnection.BINARY);
+		client.put("idle", "warm up"); // the shared loop is running
+		int threads = serverThreads();
+		List<KVClient> clients = new ArrayList<KVClient>();
+		for (int i = 0; i < 32; ++i) {
+			KVClient idle = new KVClient(hostname, 8080);
+			idle.setWireFormat(KVConnection.BINARY);
+			idle.put("idle" + i, "v" + i); // left open afterwards
+			clients.add(idle);
+		}
+		assertTrue(serverThreads() - threads < 8);
+		for (int i = 0; i < clients.size(); ++i) {
+			assertEquals("v" + i, clients.get(i).get("idle" + i));
+			clients.get(i).close();
+		}
+    }
+
+	/* live threads, but those reading responses for the clients */
+	private static int serverThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (!thread.getName().startsWith("KVClient")) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	@Test(timeout = 30000)
+    public void testMalformedFrameKeepsConnection() throws Exception {
+		client.put("framed", "ok");
+		Socket sock = new Socket(InetAddress.getLocalHost().getHostAddress(), 8080);
+		try {
+			OutputStream out = sock.getOutputStream();
+			out.write(KVConnection.BINARY_MARKER);
+			KVMessage get = new KVMessage(KVConstants.GET_REQ);
+			get.setKey("framed");
+			get.setRequestID(7);
+			byte[] bad = get.toBinary();
+			bad[0] = (byte) 0x7f; // no such type
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeInt(bad.length);
+			data.write(bad);
+			get.setRequestID(8);
+			get.sendBinaryMessage(out);
+
+			InputStream in = sock.getInputStream();
+			Map<Long, KVMessage> responses = new HashMap<Long, KVMessage>();
+			for (int i = 0; i < 2; ++i) {
+				KVMessage resp = KVMessage.receiveBinaryMessage(in);
+				responses.put(resp.getRequestID(), resp);
+			}
+			assertEquals(KVConstants.ERROR_INVALID_FORMAT, responses.get(7L).getMessage());
+			assertEquals("ok", responses.get(8L).getValue());
+		} finally {
+			sock.close();
+		}
+    }
+
+	@Test(timeout = 30000)
+    public void testPipelinedRequestTimesOut() throws Exception {
+		ServerSocket silent = new ServerSocket(0); // accepts, never answers
+		try {
+			KVClient slow = new KVClient(InetAddress.getLocalHost().getHostAddress(), silent.getLocalPort());
+			slow.setWireFormat(KVConnection.BINARY);
+			slow.setTimeout(200);
+			try {
+				slow.get("key");
+				fail("Request without response did not time out!");
+			} catch (KVException e) {
+				assertEquals(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA, e.getKVMessage().getMessage());
+			}
+			slow.close();
+		} finally {
+			silent.close();
+		}
+    }
+
 	@Test
     public void testModificationMoreTimes() throws KVException {
 		int i;
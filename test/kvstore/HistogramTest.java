@@ -0,0 +1,48 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class HistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentile(99));
+        assertEquals(0.0, h.getMean(), 0);
+    }
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 100; ++i) {
+            h.record(i);
+        }
+        h.record(-5); // counts as 0
+        assertEquals(101, h.getCount());
+        assertEquals(100, h.getMax());
+        assertEquals(5050 / 101.0, h.getMean(), 1e-9);
+        assertEquals(0, h.getPercentile(0));
+        // the 51st value is 50, in the bucket of 32 to 63
+        assertEquals(63, h.getPercentile(50));
+        // capped by the largest value
+        assertEquals(100, h.getPercentile(99));
+        long p90 = h.getPercentile(90);
+        assertTrue(p90 >= 90 && p90 <= 2 * 90);
+    }
+
+    @Test
+    public void summaryIsScrapeable() {
+        Histogram h = new Histogram();
+        h.record(3);
+        StringBuilder sb = new StringBuilder();
+        h.appendTo(sb, "x");
+        String summary = sb.toString();
+        assertTrue(summary.contains("x_count 1\n"));
+        assertTrue(summary.contains("x_mean 3.0\n"));
+        assertTrue(summary.contains("x_max 3\n"));
+    }
+
+}
@@ -2,6 +2,10 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 
 import org.junit.*;
@@ -24,6 +28,15 @@ public class KVCacheTest {
         assertNull(cache.get("hello"));
     }
     
+    @Test
+    public void keyHashingToMinValue() {
+        KVCache cache = new KVCache(3, 4);
+        assertEquals(Integer.MIN_VALUE, "polygenelubricants".hashCode());
+        assertTrue(cache.getSetId("polygenelubricants") >= 0);
+        cache.put("polygenelubricants", "x");
+        assertEquals("x", cache.get("polygenelubricants"));
+    }
+    
     @Test
     public void multiplePutsAndGets() {
         KVCache cache = new KVCache(1, 4);
@@ -77,6 +90,26 @@ public class KVCacheTest {
         assertEquals("four", cache.get("4"));
     }
     // It is not specified that after deletion, how the queue looks like...
+
+    @Test
+    public void secondChanceAfterDelete() {
+        KVCache cache = new KVCache(1, 3);
+        cache.put("A", "1");
+        cache.put("B", "2");
+        cache.put("C", "3");
+        cache.get("A");
+        cache.del("B");
+        cache.put("D", "4"); // A C D
+        cache.put("E", "5"); // A gets a second chance, C goes
+        assertNull(cache.get("C"));
+        cache.put("F", "6"); // D goes, it was never referenced
+        assertNull(cache.get("D"));
+        cache.put("G", "7"); // A lost its second chance, it goes
+        assertNull(cache.get("A"));
+        assertEquals("5", cache.get("E"));
+        assertEquals("6", cache.get("F"));
+        assertEquals("7", cache.get("G"));
+    }
     
 	@Test
 	public void testMutilpleSets() {
@@ -89,6 +122,267 @@ public class KVCacheTest {
 		assertEquals("three", cache.get("3"));
 	}
     
+	@Test
+	public void byteBudgetEvictsBySize() {
+		KVCache cache = new KVCache(1, 10, 40, 40); // two entries of 20 bytes
+		cache.put("A", "123456789");
+		cache.put("B", "123456789");
+		cache.get("A");
+		cache.put("C", "123456789"); // A gets a second chance, B goes
+		assertNull(cache.get("B"));
+		assertEquals("123456789", cache.get("A"));
+		cache.put("D", "1"); // 4 bytes, A is referenced again, C goes
+		assertNull(cache.get("C"));
+		cache.put("E", "1"); // fits with A and D
+		assertEquals("123456789", cache.get("A"));
+		assertEquals("1", cache.get("D"));
+		assertEquals("1", cache.get("E"));
+	}
+
+	@Test
+	public void admissionIsDecidedBeforeAnyEviction() {
+		KVCache cache = new KVCache(1, 10, 40, 40);
+		cache.setPolicy(new CachePolicy() {
+			public void recordAccess(String key) {
+			}
+
+			public boolean admit(String candidate, String victim) {
+				return "A".equals(victim); // only A is ever given up
+			}
+		});
+		cache.put("A", "123456789");
+		cache.put("B", "123456789");
+		cache.put("C", "1234567890123456789"); // 40 bytes, needs A and B gone
+		assertEquals("1234567890123456789", cache.get("C"));
+		assertNull(cache.get("A"));
+		assertNull(cache.get("B"));
+		assertEquals(0, cache.getStat(0, KVCache.REJECTIONS));
+
+		cache.put("D", "1"); // rejected against C, which stays
+		assertNull(cache.get("D"));
+		assertEquals("1234567890123456789", cache.get("C"));
+	}
+
+	@Test
+	public void largeEntriesBypassTheCache() {
+		KVCache cache = new KVCache(1, 10, 1000, 30);
+		cache.put("a", "small");
+		assertEquals("small", cache.get("a"));
+		cache.put("a", "much larger than thirty bytes");
+		assertNull(cache.get("a")); // the old value is gone too
+		cache.put("b", "small");
+		assertEquals("small", cache.get("b"));
+	}
+
+	@Test
+	public void tinyLFUKeepsHotKeysThroughAScan() {
+		KVCache cache = new KVCache(1, 2);
+		cache.setPolicy(new TinyLFUPolicy(2));
+		cache.put("A", "1");
+		cache.put("B", "2");
+		for(int i = 0; i < 3; ++ i) {
+			cache.get("A");
+			cache.get("B");
+		}
+		for(int i = 0; i < 10; ++ i) { // read once, then filled
+			assertNull(cache.get("scan" + i));
+			cache.put("scan" + i, "x");
+		}
+		assertEquals("1", cache.get("A"));
+		assertEquals("2", cache.get("B"));
+		for(int i = 0; i < 5; ++ i) // until read more often than A or B
+			cache.get("C");
+		cache.put("C", "3");
+		assertEquals("3", cache.get("C"));
+	}
+
+	@Test
+	public void offHeapValues() {
+		KVCache cache = new KVCache(1, 4, 12, 12, true); // 12 bytes of UTF-8
+		cache.put("A", "\u00e9t\u00e9"); // 5 bytes
+		cache.put("B", "1234");
+		assertEquals("\u00e9t\u00e9", cache.get("A"));
+		assertEquals("\u00e9t\u00e9", cache.getOptimistic("A"));
+		cache.put("B", "12"); // moved behind A, still referenced
+		cache.put("C", "123"); // fits in the free space, after compaction
+		assertEquals("\u00e9t\u00e9", cache.get("A"));
+		assertEquals("12", cache.get("B"));
+		assertEquals("123", cache.get("C"));
+		cache.put("D", "1234"); // A, B and C referenced, A goes first
+		assertNull(cache.get("A"));
+		assertEquals("12", cache.getOptimistic("B"));
+		assertEquals("1234", cache.getOptimistic("D"));
+		cache.put("E", "too large for it");
+		assertNull(cache.get("E"));
+	}
+
+	@Test
+	public void offHeapSlabsGrowWithTheirValues() {
+		KVCache cache = new KVCache(1, 8, 1 << 20, 1 << 16, true);
+		assertNull(cache.slabs[0]); // allocated with the first value
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 3000; ++i) {
+			sb.append((char) ('a' + i % 26));
+		}
+		String large = sb.toString();
+		for (int i = 0; i < 8; ++i) { // well past the first slab
+			cache.put("K" + i, i + large);
+		}
+		for (int i = 0; i < 8; ++i) {
+			assertEquals(i + large, cache.get("K" + i));
+		}
+		assertTrue(cache.slabs[0].capacity() < 1 << 20);
+	}
+
+	@Test
+	public void countsHitsMissesAndEvictions() {
+		KVCache cache = new KVCache(1, 2);
+		cache.put("A", "1");
+		cache.put("B", "2");
+		cache.put("B", "3");
+		cache.get("A");
+		cache.getOptimistic("A");
+		cache.get("C");
+		cache.put("C", "4"); // rotates A and B, then evicts A
+		assertEquals(2, cache.getStat(KVCache.HITS));
+		assertEquals(1, cache.getStat(KVCache.MISSES));
+		assertEquals(3, cache.getStat(0, KVCache.INSERTS));
+		assertEquals(1, cache.getStat(KVCache.REPLACEMENTS));
+		assertEquals(1, cache.getStat(KVCache.EVICTIONS));
+		assertEquals(2, cache.getStat(KVCache.ROTATIONS));
+		String stats = cache.getStats("cache");
+		assertTrue(stats.contains("cache_hits 2\n"));
+		assertTrue(stats.contains("cache_rotations_per_eviction 2.00\n"));
+		assertTrue(stats.contains("cache_evictions{set=\"0\"} 1\n"));
+	}
+
+	@Test
+	public void optimisticGet() {
+		KVCache cache = new KVCache(1, 2);
+		cache.put("A", "1");
+		cache.put("B", "2");
+		assertEquals("1", cache.getOptimistic("A")); // marks A referenced
+		assertNull(cache.getOptimistic("C"));
+		cache.put("C", "3"); // A gets its second chance
+		assertNull(cache.getOptimistic("B"));
+		assertEquals("1", cache.getOptimistic("A"));
+		cache.del("A");
+		assertNull(cache.getOptimistic("A"));
+	}
+
+	@Test(timeout = 10000)
+	public void optimisticGetNeverSeesAnotherValue() throws InterruptedException {
+		checkOptimisticReads(new KVCache(1, 3));
+	}
+
+	@Test(timeout = 10000)
+	public void optimisticGetNeverSeesAnotherOffHeapValue() throws InterruptedException {
+		checkOptimisticReads(new KVCache(1, 3, 8, 8, true)); // compacts often
+	}
+
+	@Test(timeout = 30000)
+	public void optimisticReadsOfOffHeapValuesUnderConcurrentWrites() throws Exception {
+		final KVCache cache = new KVCache(2, 4, 2 * 256, 256, true);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int w = 0; w < 2; ++ w) {
+			final int seed = w;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					for(int i = seed; !done.get(); i += 2) {
+						String key = Integer.toString(i % 11);
+						Lock lock = cache.getLock(key);
+						lock.lock();
+						try {
+							cache.put(key, checkedValue(key, i));
+						} finally {
+							lock.unlock();
+						}
+					}
+				}
+			}));
+		}
+		for(int r = 0; r < 4; ++ r) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					for(int i = 0; !done.get(); ++ i) {
+						String key = Integer.toString(i % 11);
+						String value = cache.getOptimistic(key);
+						if(value != null && !isCheckedValue(key, value))
+							errors.add(key + " -> " + value);
+					}
+				}
+			}));
+		}
+		for(Thread thread : threads)
+			thread.start();
+		Thread.sleep(2000);
+		done.set(true);
+		for(Thread thread : threads)
+			thread.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
+	/* a value of its key, with a length and a filler telling torn reads apart */
+	private static String checkedValue(String key, int i) {
+		StringBuilder value = new StringBuilder(key).append(':').append(i % 100).append(':');
+		for(int j = 0; j < i % 100; ++ j)
+			value.append((char) ('a' + i % 26));
+		return value.toString();
+	}
+
+	private static boolean isCheckedValue(String key, String value) {
+		String[] parts = value.split(":", -1);
+		if(parts.length != 3 || !parts[0].equals(key))
+			return false;
+		int n;
+		try {
+			n = Integer.parseInt(parts[1]);
+		} catch(NumberFormatException e) {
+			return false;
+		}
+		if(parts[2].length() != n)
+			return false;
+		for(int j = 0; j < n; ++ j)
+			if(parts[2].charAt(j) != parts[2].charAt(0))
+				return false;
+		return true;
+	}
+
+	private void checkOptimisticReads(final KVCache cache) throws InterruptedException {
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				for(int i = 0; !done.get(); ++ i) {
+					String key = Integer.toString(i % 7);
+					Lock lock = cache.getLock(key);
+					lock.lock();
+					try {
+						if(i % 5 == 0)
+							cache.del(key);
+						else
+							cache.put(key, key + "!");
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		});
+		writer.start();
+		try {
+			for(int i = 0; i < 200000; ++ i) {
+				String key = Integer.toString(i % 7);
+				String value = cache.getOptimistic(key);
+				if(value != null)
+					assertEquals(key + "!", value);
+			}
+		} finally {
+			done.set(true);
+			writer.join();
+		}
+	}
+
 	@Test
 	public void testLock() {
 		KVCache cache= new KVCache(2, 1);
@@ -169,6 +169,147 @@ public class KVMessageTest {
         }
     }
 
+    @Test
+    public void framedMessagesShareAStream() throws KVException {
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("key");
+        put.setValue("value");
+        put.setTxnID(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        put.sendFramedMessage(out);
+        new KVMessage(ACK).sendFramedMessage(out);
+        assertTrue(KVMessage.isFramed(out.toByteArray()[0]));
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        KVMessage kvm = KVMessage.receiveFramedMessage(in);
+        assertEquals(PUT_REQ, kvm.getMsgType());
+        assertEquals("value", kvm.getValue());
+        assertEquals(42, kvm.getTxnID());
+        assertEquals(ACK, KVMessage.receiveFramedMessage(in).getMsgType());
+        try {
+            KVMessage.receiveFramedMessage(in);
+            fail("Didn't fail at the end of the stream!");
+        } catch (KVException kve) {
+            assertEquals(ERROR_COULD_NOT_RECEIVE_DATA, kve.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void binaryRoundTrip() throws KVException {
+        KVMessage abort = new KVMessage(ABORT, ERROR_NO_SUCH_KEY);
+        abort.setTxnID(7);
+        KVMessage kvm = KVMessage.fromBinary(abort.toBinary());
+        assertEquals(ABORT, kvm.getMsgType());
+        assertEquals(ERROR_NO_SUCH_KEY, kvm.getMessage());
+        assertEquals(7, kvm.getTxnID());
+        assertNull(kvm.getKey());
+
+        KVMessage get = new KVMessage(RESP);
+        get.setKey("k\u00e9y");
+        get.setValue("value");
+        kvm = KVMessage.fromBinary(get.toBinary());
+        assertEquals("k\u00e9y", kvm.getKey());
+        assertEquals("value", kvm.getValue());
+        assertNull(kvm.getMessage());
+    }
+
+    @Test
+    public void batchRoundTrip() throws KVException {
+        Map<String, String> batch = new LinkedHashMap<String, String>();
+        batch.put("one", "1");
+        batch.put("tw<o>", "2 & 3");
+        KVMessage mput = new KVMessage(MPUT_REQ);
+        mput.setBatch(batch);
+        KVMessage kvm = new KVMessage(new ByteArrayInputStream(mput.toXML().getBytes()));
+        assertEquals(MPUT_REQ, kvm.getMsgType());
+        assertEquals(batch, kvm.getBatch());
+        assertEquals(Arrays.asList("one", "tw<o>"), new ArrayList<String>(kvm.getBatch().keySet()));
+        assertEquals(batch, KVMessage.fromBinary(mput.toBinary()).getBatch());
+
+        KVMessage mget = new KVMessage(MGET_REQ);
+        mget.setBatch(batch);
+        kvm = KVMessage.fromBinary(mget.toBinary());
+        assertTrue(kvm.getBatch().containsKey("one"));
+        assertNull(kvm.getBatch().get("one"));
+
+        KVMessage resp = new KVMessage(RESP);
+        resp.setBatch(new HashMap<String, String>());
+        kvm = new KVMessage(new ByteArrayInputStream(resp.toXML().getBytes()));
+        assertTrue(kvm.getBatch().isEmpty());
+
+        KVMessage empty = new KVMessage(MDEL_REQ);
+        empty.setBatch(new HashMap<String, String>());
+        try {
+            KVMessage.fromBinary(empty.toBinary());
+            fail("Didn't fail on an empty batch!");
+        } catch (KVException kve) {
+            assertEquals(ERROR_INVALID_FORMAT, kve.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void binaryIsValidated() throws KVException {
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("key");
+        put.setValue("");
+        try {
+            KVMessage.fromBinary(put.toBinary());
+            fail("Didn't fail on an empty value!");
+        } catch (KVException kve) {
+            assertEquals(ERROR_INVALID_FORMAT, kve.getKVMessage().getMessage());
+        }
+        byte[] truncated = new KVMessage(REGISTER, "1@host:80").toBinary();
+        try {
+            KVMessage.fromBinary(Arrays.copyOf(truncated, truncated.length - 1));
+            fail("Didn't fail on truncated data!");
+        } catch (KVException kve) {
+            assertEquals(ERROR_PARSER, kve.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void parsesTextOfFirstElements() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<KVMessage type=\"putreq\"><Extra><Key>first</Key></Extra>"
+            + "<Key>second</Key><Value>a &amp; <![CDATA[<b>]]></Value>"
+            + "<Message>ignored</Message></KVMessage>";
+        KVMessage kvm = new KVMessage(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        assertEquals(PUT_REQ, kvm.getMsgType());
+        assertEquals("first", kvm.getKey());
+        assertEquals("a & <b>", kvm.getValue());
+        assertNull(kvm.getMessage());
+
+        try {
+            new KVMessage(new ByteArrayInputStream(xml.substring(0, 60).getBytes("UTF-8")));
+            fail("Didn't fail on a truncated message!");
+        } catch (KVException kve) {
+            assertEquals(ERROR_PARSER, kve.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void toXMLKeepsTransformerOutput() throws Exception {
+        String nl = System.getProperty("line.separator");
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("a<b>&\"c\"");
+        put.setValue("\u00e9\r\t\ud83d\ude00");
+        put.setTxnID(9);
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>" + nl
+            + "<KVMessage type=\"putreq\">" + nl
+            + "    <Key>a&lt;b&gt;&amp;\"c\"</Key>" + nl
+            + "    <Value>\u00e9&#13;\t&#128512;</Value>" + nl
+            + "    <TxnID>9</TxnID>" + nl
+            + "</KVMessage>" + nl, put.toXML());
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>" + nl
+            + "<KVMessage type=\"ack\"/>" + nl, new KVMessage(ACK).toXML());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        put.sendFramedMessage(out);
+        byte[] xml = put.toXML().getBytes("UTF-8");
+        assertEquals(4 + xml.length, out.size());
+        assertArrayEquals(xml, Arrays.copyOfRange(out.toByteArray(), 4, out.size()));
+    }
+
     /* Begin helper methods */
 
     private void setupSocket(String filename) {
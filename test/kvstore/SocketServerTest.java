@@ -2,8 +2,10 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
-import java.io.IOException;
+import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.*;
 
@@ -37,5 +39,160 @@ public class SocketServerTest {
         ss.start();
     }
 
+    @Test(timeout = 30000)
+    public void eventLoopsServeIdleAndActiveConnections() throws Exception {
+        ss.setEventLoops(2);
+        ss.addHandler(new ServerClientHandler(new KVServer(10, 10), 4));
+        ServerRunner runner = new ServerRunner(ss, "selector");
+        runner.start();
+        List<Socket> idle = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 200; ++i) {
+                idle.add(new Socket(ss.getHostname(), ss.getPort()));
+            }
+            KVClient client = new KVClient(ss.getHostname(), ss.getPort());
+            client.put("key", "value");
+            assertEquals("value", client.get("key"));
+            client.setWireFormat(KVConnection.BINARY);
+            client.put("key", "binary");
+            assertEquals("binary", client.get("key"));
+            client.setWireFormat(KVConnection.FRAMED_XML);
+            client.del("key");
+            try {
+                client.get("key");
+                fail("NO_SUCH_KEY Exception not received!");
+            } catch (KVException e) {
+                assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+            }
+            client.close();
+        } finally {
+            for (Socket sock : idle) {
+                sock.close();
+            }
+            runner.stop();
+        }
+    }
+
+
+    @Test(timeout = 30000)
+    public void eventLoopAnswersMalformedFrameAndGoesOn() throws Exception {
+        ss.setEventLoops(1);
+        ss.addHandler(new ServerClientHandler(new KVServer(10, 10), 2));
+        ServerRunner runner = new ServerRunner(ss, "selector");
+        runner.start();
+        Socket sock = new Socket(ss.getHostname(), ss.getPort());
+        try {
+            OutputStream out = sock.getOutputStream();
+            byte[] bad = "<KVMessage type=\"getreq\"><RequestID>7</RequestID>".getBytes("UTF-8");
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(bad.length);
+            data.write(bad);
+            KVMessage del = new KVMessage(KVConstants.DEL_REQ);
+            del.setKey("missing");
+            del.setRequestID(8);
+            del.sendFramedMessage(out);
+
+            InputStream in = sock.getInputStream();
+            Map<Long, KVMessage> responses = new HashMap<Long, KVMessage>();
+            for (int i = 0; i < 2; ++i) {
+                KVMessage resp = KVMessage.receiveFramedMessage(in);
+                responses.put(resp.getRequestID(), resp);
+            }
+            assertEquals(KVConstants.ERROR_INVALID_FORMAT, responses.get(7L).getMessage());
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, responses.get(8L).getMessage());
+        } finally {
+            sock.close();
+            runner.stop();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void eventLoopStopsReadingWhileResponsesAreUnread() throws Exception {
+        final AtomicInteger handled = new AtomicInteger();
+        final char[] big = new char[200 * 1024];
+        Arrays.fill(big, 'v');
+        ss.setEventLoops(1);
+        ss.addHandler(new MessageHandler() {
+            public void handle(Socket sock) {
+            }
+
+            public void handle(KVMessage req, MessageHandler.Responder responder) {
+                handled.incrementAndGet();
+                KVMessage resp = new KVMessage(KVConstants.RESP);
+                resp.setKey(req.getKey());
+                resp.setValue(new String(big));
+                responder.respond(resp);
+            }
+        });
+        ServerRunner runner = new ServerRunner(ss, "selector");
+        runner.start();
+        Socket sock = new Socket(ss.getHostname(), ss.getPort());
+        try {
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            out.write(KVConnection.BINARY_MARKER);
+            int sent = 500; // 100 MB of responses
+            for (int i = 0; i < sent; ++i) {
+                KVMessage get = new KVMessage(KVConstants.GET_REQ);
+                get.setKey("key");
+                get.setRequestID(i);
+                get.sendBinaryMessage(out);
+            }
+            out.flush();
+            Thread.sleep(1000);
+            assertTrue(handled.get() < sent / 2); // the rest waits for us
+
+            InputStream in = sock.getInputStream();
+            for (int i = 0; i < sent; ++i) {
+                assertEquals(big.length, KVMessage.receiveBinaryMessage(in).getValue().length());
+            }
+            assertEquals(sent, handled.get());
+        } finally {
+            sock.close();
+            runner.stop();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void threadPerJobExecutorServesConcurrentClients() throws Exception {
+        assertFalse(new ThreadPerJobExecutor("platform", false).isVirtual());
+        boolean hasVirtualThreads = true;
+        try {
+            Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            hasVirtualThreads = false;
+        }
+        if (!hasVirtualThreads) { // decided when constructed, never virtual
+            assertFalse(new ThreadPerJobExecutor("probe").isVirtual());
+        }
+        ss.addHandler(new ServerClientHandler(new KVServer(10, 10),
+                new ThreadPerJobExecutor("ServerClientHandler")));
+        ServerRunner runner = new ServerRunner(ss, "threadPerJob");
+        runner.start();
+        try {
+            final KVClient client = new KVClient(ss.getHostname(), ss.getPort());
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            Thread[] threads = new Thread[16];
+            for (int i = 0; i < threads.length; ++i) {
+                final String key = "key" + i;
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            client.put(key, "value");
+                            assertEquals("value", client.get(key));
+                        } catch (Throwable e) {
+                            errors.add(e);
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(errors.isEmpty());
+        } finally {
+            runner.stop();
+        }
+    }
 
 }
@@ -0,0 +1,53 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.*;
+
+public class StripedCountersTest {
+
+    @Test(timeout = 10000)
+    public void concurrentIncrementsAreNotLost() throws InterruptedException {
+        final StripedCounters counters = new StripedCounters(3);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; ++i) {
+                        counters.increment(1);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, counters.get(0));
+        assertEquals(80000, counters.get(1));
+        assertEquals(0, counters.get(2));
+        assertEquals(3, counters.size());
+    }
+
+    @Test(timeout = 10000)
+    public void threadsAreDealtDifferentStripes() throws InterruptedException {
+        final StripedCounters counters = new StripedCounters(1);
+        final Set<Integer> stripes = Collections.synchronizedSet(new HashSet<Integer>());
+        for (int t = 0; t < 4; ++t) { // one after the other, not by id
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    counters.increment(0);
+                    stripes.add(counters.stripe());
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        assertTrue(stripes.size() > 1);
+        assertEquals(4, counters.get(0));
+    }
+}
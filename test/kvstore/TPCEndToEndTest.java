@@ -2,6 +2,8 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
+import java.util.*;
+
 import org.junit.Test;
 
 public class TPCEndToEndTest extends TPCEndToEndTemplate {
@@ -43,6 +45,31 @@ public class TPCEndToEndTest extends TPCEndToEndTemplate {
     	}
     }
 
+    @Test(timeout = 15000)
+    public void testBatches() throws KVException {
+        client.put("foo", "bar");
+        client.put("baz", "qux");
+        Map<String, String> found = client.mget(Arrays.asList("baz", "missing", "foo"));
+        assertEquals(Arrays.asList("baz", "foo"), new ArrayList<String>(found.keySet()));
+        assertEquals("bar", found.get("foo"));
+
+        Map<String, String> entries = new HashMap<String, String>();
+        entries.put("foo", "changed");
+        try {
+            client.mput(entries);
+            fail("MPUT accepted by the master!");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_UNSUPPORTED_REQUEST, e.getKVMessage().getMessage());
+        }
+        try {
+            client.mdel(Arrays.asList("foo"));
+            fail("MDEL accepted by the master!");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_UNSUPPORTED_REQUEST, e.getKVMessage().getMessage());
+        }
+        assertEquals("bar", client.get("foo"));
+    }
+
     @Test(timeout = 60000)
     public void testSingleSlaveCrash() throws KVException {
         client.put(KEY1, "1");
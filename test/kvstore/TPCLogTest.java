@@ -0,0 +1,354 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+
+import org.junit.*;
+
+public class TPCLogTest {
+
+    File logDir;
+    File logFile;
+
+    @Before
+    public void setupLog() throws Exception {
+        logDir = File.createTempFile("tpclog", "");
+        logDir.delete();
+        logDir.mkdir();
+        logFile = new File(logDir, "log");
+    }
+
+    @After
+    public void removeLog() {
+        for (File f : logDir.listFiles()) {
+            f.delete();
+        }
+        logDir.delete();
+    }
+
+    private KVMessage putReq(String key, String value) {
+        KVMessage msg = new KVMessage(KVConstants.PUT_REQ);
+        msg.setKey(key);
+        msg.setValue(value);
+        return msg;
+    }
+
+    private KVMessage delReq(String key) {
+        KVMessage msg = new KVMessage(KVConstants.DEL_REQ);
+        msg.setKey(key);
+        return msg;
+    }
+
+    @Test
+    public void rebuildReplaysCommittedEntries() throws KVException {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        log.appendAndFlush(putReq("foo", "bar"));
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.appendAndFlush(putReq("baz", "qux"));
+        log.appendAndFlush(new KVMessage(KVConstants.ABORT));
+        log.appendAndFlush(putReq("one", "1"));
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.appendAndFlush(delReq("one"));
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.appendAndFlush(putReq("two", "2"));
+        log.close();
+
+        KVServer server = new KVServer(10, 10);
+        TPCLog rebuilt = new TPCLog(logFile.getPath(), server);
+        assertEquals("bar", server.get("foo"));
+        assertFalse(server.hasKey("baz"));
+        assertFalse(server.hasKey("one"));
+        assertFalse(server.hasKey("two"));
+
+        // the pending prepare is still the last entry
+        KVMessage last = rebuilt.getLastEntry();
+        assertEquals(KVConstants.PUT_REQ, last.getMsgType());
+        assertEquals("two", last.getKey());
+        rebuilt.close();
+    }
+
+    @Test
+    public void tornTailIsDiscarded() throws Exception {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        log.appendAndFlush(putReq("foo", "bar"));
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.close();
+
+        File segment = new File(logDir, "log.0");
+        long goodLength = segment.length();
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(goodLength);
+        raf.writeInt(1000); // record header without its body
+        raf.write(new byte[] {1, 2, 3});
+        raf.close();
+
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(logFile.getPath(), server);
+        assertEquals("bar", server.get("foo"));
+        assertEquals(goodLength, segment.length());
+
+        // appends continue right after the last complete record
+        log.appendAndFlush(putReq("foo", "new"));
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.close();
+
+        server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server).close();
+        assertEquals("new", server.get("foo"));
+    }
+
+    @Test
+    public void corruptLastRecordEndsReplay() throws Exception {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        log.appendAndFlush(putReq("foo", "bar"));
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.appendAndFlush(putReq("foo", "baz"));
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.close();
+        File segment = new File(logDir, "log.0");
+        long length = segment.length();
+
+        // flip a byte in the last commit, 25 bytes long
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        long pos = length - 10;
+        raf.seek(pos);
+        int b = raf.read();
+        raf.seek(pos);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        KVServer server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server).close();
+        assertEquals("bar", server.get("foo"));
+        assertEquals(length - 25, segment.length());
+    }
+
+    @Test
+    public void corruptRecordInsideLastSegmentIsFatal() throws Exception {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        for (int i = 0; i < 3; ++i) {
+            log.appendAndFlush(putReq("key" + i, "value" + i));
+            log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        }
+        log.close();
+        File segment = new File(logDir, "log.0");
+        long length = segment.length();
+
+        // flip a byte in the first put, with complete records after it
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(10);
+        int b = raf.read();
+        raf.seek(10);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        try {
+            new TPCLog(logFile.getPath(), new KVServer(10, 10));
+            fail("Committed records discarded as a torn tail!");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_CORRUPT_LOG, e.getKVMessage().getMessage());
+        }
+        assertEquals(length, segment.length()); // left as it was
+    }
+
+    @Test
+    public void corruptRecordBeforeLastSegmentIsFatal() throws Exception {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        log.appendAndFlush(putReq("foo", "bar"));
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.close();
+        // a later segment, as left by a checkpoint that did not complete
+        File segment = new File(logDir, "log.0");
+        Files.copy(segment.toPath(), new File(logDir, "log.1").toPath());
+
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(20);
+        int b = raf.read();
+        raf.seek(20);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        try {
+            new TPCLog(logFile.getPath(), new KVServer(10, 10));
+            fail("Log replayed around a corrupt record!");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_CORRUPT_LOG, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failedWriteIsNotAcknowledged() throws Exception {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        log.appendAndFlush(putReq("foo", "bar"));
+        // break the channel under the log
+        Field channel = TPCLog.class.getDeclaredField("channel");
+        channel.setAccessible(true);
+        ((FileChannel) channel.get(log)).close();
+        try {
+            log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+            fail("Append acknowledged without reaching the disk!");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_COULD_NOT_LOG, e.getKVMessage().getMessage());
+        }
+        try { // the log stays failed
+            log.appendAndFlush(putReq("baz", "qux"));
+            fail("Append accepted by a failed log!");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_COULD_NOT_LOG, e.getKVMessage().getMessage());
+        }
+        log.close();
+    }
+
+    @Test
+    public void appendToUnopenedLogFails() throws Exception {
+        File notADir = new File(logDir, "file");
+        assertTrue(notADir.createNewFile());
+        TPCLog log = new TPCLog(new File(notADir, "log").getPath(), new KVServer(10, 10));
+        try {
+            log.appendAndFlush(putReq("foo", "bar"));
+            fail("Append acknowledged without a segment to write it to!");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_COULD_NOT_LOG, e.getKVMessage().getMessage());
+        }
+        assertNull(log.getLastEntry());
+    }
+
+    @Test
+    public void interleavedTransactionsReplayByID() throws KVException {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        KVMessage put1 = putReq("one", "1");
+        put1.setTxnID(1);
+        KVMessage put2 = putReq("two", "2");
+        put2.setTxnID(2);
+        KVMessage put3 = putReq("three", "3");
+        put3.setTxnID(3);
+        log.appendAndFlush(put1);
+        log.appendAndFlush(put2);
+        log.appendAndFlush(put3);
+        assertEquals("two", log.getPreparedEntry(2).getKey());
+
+        KVMessage commit1 = new KVMessage(KVConstants.COMMIT);
+        commit1.setTxnID(1);
+        KVMessage abort2 = new KVMessage(KVConstants.ABORT);
+        abort2.setTxnID(2);
+        log.appendAndFlush(commit1);
+        log.appendAndFlush(abort2);
+        assertNull(log.getPreparedEntry(1));
+        assertNull(log.getPreparedEntry(2));
+        log.close();
+
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(logFile.getPath(), server);
+        assertEquals("1", server.get("one"));
+        assertFalse(server.hasKey("two"));
+        assertFalse(server.hasKey("three"));
+        // still undecided after recovery
+        assertEquals("3", log.getPreparedEntry(3).getValue());
+        log.close();
+    }
+
+    @Test
+    public void prepareAfterItsAbortIsDropped() throws KVException {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        KVMessage abort = new KVMessage(KVConstants.ABORT);
+        abort.setTxnID(7);
+        assertTrue(log.appendAndFlush(abort));
+        KVMessage put = putReq("late", "prepare");
+        put.setTxnID(7);
+        assertFalse(log.appendAndFlush(put));
+        assertNull(log.getPreparedEntry(7));
+        log.close();
+
+        log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        assertNull(log.getPreparedEntry(7));
+        log.close();
+    }
+
+    @Test
+    public void checkpointKeepsUndecidedPrepares() throws Exception {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        log.setCheckpointInterval(0);
+        KVMessage put = putReq("foo", "bar");
+        put.setTxnID(1);
+        log.appendAndFlush(put);
+        log.checkpoint();
+        log.checkpoint();
+        assertEquals("foo", log.getPreparedEntry(1).getKey());
+        log.close();
+
+        log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        assertEquals("foo", log.getPreparedEntry(1).getKey());
+        log.close();
+    }
+
+    @Test(timeout = 15000)
+    public void groupCommitKeepsConcurrentAppendsIntact() throws Exception {
+        final TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10), 8, 5);
+        Thread[] appenders = new Thread[8];
+        for (int i = 0; i < appenders.length; ++i) {
+            final String key = "key" + i;
+            appenders[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20; ++j) {
+                            log.appendAndFlush(putReq(key, "value" + j));
+                        }
+                    } catch (KVException e) {
+                        // asserted below through the rebuilt server
+                    }
+                }
+            });
+            appenders[i].start();
+        }
+        for (Thread appender : appenders) {
+            appender.join();
+        }
+        log.appendAndFlush(putReq("last", "entry"));
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.close();
+
+        KVServer server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server).close();
+        assertEquals("entry", server.get("last"));
+        assertFalse(server.hasKey("key0"));
+    }
+
+    @Test
+    public void checkpointTruncatesLog() throws KVException {
+        // the slave applies a commit to its KVServer before logging it
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logFile.getPath(), server);
+        log.setCheckpointInterval(0);
+        log.appendAndFlush(putReq("foo", "bar"));
+        server.put("foo", "bar");
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.appendAndFlush(putReq("gone", "soon"));
+        server.put("gone", "soon");
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.appendAndFlush(delReq("gone"));
+        server.del("gone");
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        // a prepare whose decision arrives after the checkpoint
+        log.appendAndFlush(putReq("pending", "value"));
+        log.checkpoint();
+        assertFalse(new File(logDir, "log.0").exists());
+        assertTrue(new File(logDir, "log.checkpoint").exists());
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.appendAndFlush(putReq("after", "checkpoint"));
+        log.appendAndFlush(new KVMessage(KVConstants.COMMIT));
+        log.close();
+
+        server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server).close();
+        assertEquals("bar", server.get("foo"));
+        assertEquals("value", server.get("pending"));
+        assertEquals("checkpoint", server.get("after"));
+        assertFalse(server.hasKey("gone"));
+    }
+
+}
@@ -0,0 +1,158 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+public class TPCMasterHandlerTest {
+
+    File logDir;
+    KVServer server;
+    TPCLog log;
+
+    /* runs its jobs at once, remembering the requests it was given */
+    static class Lane implements JobExecutor {
+        List<Runnable> jobs = new ArrayList<Runnable>();
+
+        public void addJob(Runnable r) {
+            addJob(r, -1);
+        }
+
+        public void addJob(Runnable r, int affinity) {
+            jobs.add(r);
+            r.run();
+        }
+
+        public void offerJob(Runnable r, int affinity) {
+            addJob(r, affinity);
+        }
+    }
+
+    Lane decisions = new Lane();
+    Lane prepares = new Lane();
+    Lane reads = new Lane();
+    List<KVMessage> responses = new ArrayList<KVMessage>();
+
+    @Before
+    public void setupSlave() throws Exception {
+        logDir = File.createTempFile("tpcslave", "");
+        logDir.delete();
+        logDir.mkdir();
+        server = new KVServer(10, 10);
+        log = new TPCLog(new File(logDir, "log").getPath(), server);
+    }
+
+    @After
+    public void removeLog() {
+        for (File f : logDir.listFiles()) {
+            f.delete();
+        }
+        logDir.delete();
+    }
+
+    private void send(MessageHandler handler, KVMessage req) {
+        handler.handle(req, new MessageHandler.Responder() {
+            public void respond(KVMessage resp) {
+                responses.add(resp);
+            }
+        });
+    }
+
+    @Test
+    public void requestsRunInTheirLane() throws KVException {
+        TPCMasterHandler handler = new TPCMasterHandler(1, server, log, decisions, prepares, reads);
+        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+        put.setKey("foo");
+        put.setValue("bar");
+        send(handler, put);
+        send(handler, new KVMessage(KVConstants.COMMIT));
+        KVMessage get = new KVMessage(KVConstants.GET_REQ);
+        get.setKey("foo");
+        send(handler, get);
+        KVMessage del = new KVMessage(KVConstants.DEL_REQ);
+        del.setKey("foo");
+        send(handler, del);
+        send(handler, new KVMessage(KVConstants.ABORT));
+
+        assertEquals(2, prepares.jobs.size());
+        assertEquals(2, decisions.jobs.size());
+        assertEquals(1, reads.jobs.size());
+        assertEquals(KVConstants.READY, responses.get(0).getMsgType());
+        assertEquals(KVConstants.ACK, responses.get(1).getMsgType());
+        assertEquals("bar", responses.get(2).getValue());
+        assertEquals("bar", server.get("foo")); // the delete was aborted
+    }
+
+    @Test
+    public void getsAreNotLogged() throws KVException {
+        TPCMasterHandler handler = new TPCMasterHandler(1, server, log, decisions, prepares, reads);
+        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+        put.setKey("foo");
+        put.setValue("bar");
+        send(handler, put);
+        long logged = logBytes();
+        KVMessage get = new KVMessage(KVConstants.GET_REQ);
+        get.setKey("foo");
+        send(handler, get);
+        send(handler, get);
+
+        assertEquals(KVConstants.ERROR_NO_SUCH_KEY, responses.get(1).getMessage());
+        assertEquals(logged, logBytes());
+        assertEquals(KVConstants.PUT_REQ, log.getLastEntry().getMsgType());
+        send(handler, new KVMessage(KVConstants.COMMIT)); // of the PUT
+        assertEquals(KVConstants.ACK, responses.get(3).getMsgType());
+        assertEquals("bar", server.get("foo"));
+    }
+
+    private long logBytes() {
+        long bytes = 0;
+        for (File f : logDir.listFiles()) {
+            bytes += f.length();
+        }
+        return bytes;
+    }
+
+    @Test
+    public void commitAfterCheckpointAndRestartIsApplied() throws KVException {
+        TPCMasterHandler handler = new TPCMasterHandler(1, server, log, decisions, prepares, reads);
+        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+        put.setKey("foo");
+        put.setValue("bar");
+        put.setTxnID(7);
+        send(handler, put);
+        assertEquals(KVConstants.READY, responses.get(0).getMsgType());
+        log.checkpoint(); // the READY prepare has to survive it
+        log.close();
+
+        server = new KVServer(10, 10);
+        log = new TPCLog(new File(logDir, "log").getPath(), server);
+        handler = new TPCMasterHandler(1, server, log, decisions, prepares, reads);
+        KVMessage commit = new KVMessage(KVConstants.COMMIT);
+        commit.setTxnID(7);
+        send(handler, commit);
+        assertEquals(KVConstants.ACK, responses.get(1).getMsgType());
+        assertEquals("bar", server.get("foo"));
+    }
+
+    @Test
+    public void abortOvertakingItsPrepare() throws KVException {
+        TPCMasterHandler handler = new TPCMasterHandler(1, server, log, decisions, prepares, reads);
+        KVMessage abort = new KVMessage(KVConstants.ABORT);
+        abort.setTxnID(42);
+        send(handler, abort); // the decision lane ran first
+        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+        put.setKey("foo");
+        put.setValue("bar");
+        put.setTxnID(42);
+        send(handler, put);
+
+        assertEquals(KVConstants.ACK, responses.get(0).getMsgType());
+        assertEquals(KVConstants.ABORT, responses.get(1).getMsgType());
+        assertNull(log.getPreparedEntry(42));
+        assertFalse(server.hasKey("foo"));
+    }
+}
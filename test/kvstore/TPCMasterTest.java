@@ -0,0 +1,189 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+public class TPCMasterTest {
+
+    TPCMaster master;
+    FakeSlave first;
+    FakeSlave second;
+    CountDownLatch release = new CountDownLatch(1);
+
+    /* answers each request of the master as its subclass decides */
+    abstract class FakeSlave implements Runnable {
+        ServerSocket server;
+        List<KVMessage> received = Collections.synchronizedList(new ArrayList<KVMessage>());
+        CountDownLatch aborted = new CountDownLatch(1);
+
+        FakeSlave() throws IOException {
+            server = new ServerSocket(0);
+            Thread t = new Thread(this, "FakeSlave");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        abstract KVMessage answer(KVMessage req) throws InterruptedException;
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket sock = server.accept();
+                    Thread t = new Thread(new Runnable() {
+                        public void run() {
+                            serve(sock);
+                        }
+                    });
+                    t.setDaemon(true);
+                    t.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private void serve(Socket sock) {
+            try {
+                KVConnection conn = KVConnection.accept(sock);
+                while (true) {
+                    KVMessage req = conn.receive(0);
+                    received.add(req);
+                    if (KVConstants.ABORT.equals(req.getMsgType())) {
+                        aborted.countDown();
+                    }
+                    KVMessage resp = answer(req);
+                    if (resp != null) {
+                        resp.setRequestID(req.getRequestID());
+                        conn.send(resp);
+                    }
+                }
+            } catch (Exception e) {
+                // closed by the master, or the test is over
+            } finally {
+                try {
+                    sock.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        boolean isPrepare(KVMessage req) {
+            return KVConstants.PUT_REQ.equals(req.getMsgType())
+                || KVConstants.DEL_REQ.equals(req.getMsgType());
+        }
+
+        TPCSlaveInfo info(long slaveID) throws Exception {
+            return new TPCSlaveInfo(slaveID + "@" + InetAddress.getLocalHost().getHostAddress()
+                + ":" + server.getLocalPort());
+        }
+    }
+
+    /* votes as told after a delay, and ACKs decisions */
+    class Voter extends FakeSlave {
+        String vote;
+        long delay;
+
+        Voter(String vote, long delay) throws IOException {
+            this.vote = vote;
+            this.delay = delay;
+        }
+
+        KVMessage answer(KVMessage req) throws InterruptedException {
+            if (!isPrepare(req)) {
+                return new KVMessage(KVConstants.ACK);
+            }
+            release.await(delay, TimeUnit.MILLISECONDS);
+            return KVConstants.READY.equals(vote) ? new KVMessage(KVConstants.READY)
+                : new KVMessage(KVConstants.ABORT, KVConstants.ERROR_NO_SUCH_KEY);
+        }
+    }
+
+    /* never answers anything until the test is over */
+    class Hung extends FakeSlave {
+        Hung() throws IOException {
+        }
+
+        KVMessage answer(KVMessage req) throws InterruptedException {
+            release.await();
+            return null;
+        }
+    }
+
+    private void startMaster(FakeSlave a, FakeSlave b) throws Exception {
+        first = a;
+        second = b;
+        master = new TPCMaster(2, new KVCache(1, 4));
+        assertTrue(master.registerSlave(a.info(1)));
+        assertTrue(master.registerSlave(b.info(2)));
+    }
+
+    @After
+    public void stopSlaves() throws IOException {
+        release.countDown();
+        if (first != null) {
+            first.server.close();
+            second.server.close();
+        }
+    }
+
+    private KVMessage putReq() {
+        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+        put.setKey("key");
+        put.setValue("value");
+        return put;
+    }
+
+    @Test(timeout = 10000)
+    public void preparesBothReplicasInParallel() throws Exception {
+        startMaster(new Voter(KVConstants.READY, 800), new Voter(KVConstants.READY, 800));
+        long start = System.currentTimeMillis();
+        master.handleTPCRequest(putReq(), true);
+        assertTrue(System.currentTimeMillis() - start < 1500); // not 2 x 800
+        assertEquals(KVConstants.COMMIT, first.received.get(1).getMsgType());
+        assertEquals(KVConstants.COMMIT, second.received.get(1).getMsgType());
+        assertEquals("value", master.handleGet(putReq()));
+    }
+
+    @Test(timeout = 10000)
+    public void abortReachesSlowReplicaAtOnce() throws Exception {
+        startMaster(new Voter(KVConstants.ABORT, 0), new Voter(KVConstants.READY, 2500));
+        long start = System.currentTimeMillis();
+        try {
+            master.handleTPCRequest(putReq(), true);
+            fail("Transaction committed despite an abort vote!");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        // both got the ABORT while the slow one was still preparing
+        assertTrue(first.aborted.await(0, TimeUnit.MILLISECONDS));
+        assertTrue(second.aborted.await(0, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test(timeout = 30000)
+    public void hungReplicaDoesNotHoldTheKeyForever() throws Exception {
+        startMaster(new Voter(KVConstants.READY, 0), new Hung());
+        for (int i = 0; i < 2; ++i) { // the key lock is given back each time
+            long start = System.currentTimeMillis();
+            try {
+                master.handleTPCRequest(putReq(), true);
+                fail("Transaction committed without the vote of a replica!");
+            } catch (KVException e) {
+                assertEquals(KVConstants.ERROR_SOCKET_TIMEOUT, e.getKVMessage().getMessage());
+            }
+            assertTrue(System.currentTimeMillis() - start < 3 * TPCMaster.TIMEOUT);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+public class TPCSlaveInfoTest {
+
+    FakeSlave slave;
+    TPCSlaveInfo info;
+
+    /* answers every request, but drops the connection instead when told */
+    class FakeSlave implements Runnable {
+        ServerSocket server;
+        AtomicInteger connections = new AtomicInteger();
+        List<KVMessage> received = Collections.synchronizedList(new ArrayList<KVMessage>());
+        /* indexes in received of the requests to drop, or to close after */
+        List<Integer> drop = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Integer> closeAfter = Collections.synchronizedList(new ArrayList<Integer>());
+
+        FakeSlave() throws IOException {
+            server = new ServerSocket(0);
+            Thread t = new Thread(this, "FakeSlave");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket sock = server.accept();
+                    connections.incrementAndGet();
+                    Thread t = new Thread(new Runnable() {
+                        public void run() {
+                            serve(sock);
+                        }
+                    });
+                    t.setDaemon(true);
+                    t.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private void serve(Socket sock) {
+            try {
+                KVConnection conn = KVConnection.accept(sock);
+                while (true) {
+                    KVMessage req = conn.receive(0);
+                    received.add(req);
+                    Integer index = received.size() - 1;
+                    if (drop.contains(index)) {
+                        break;
+                    }
+                    KVMessage resp = new KVMessage(KVConstants.RESP);
+                    resp.setRequestID(req.getRequestID());
+                    resp.setKey(req.getKey());
+                    resp.setValue("value");
+                    conn.send(resp);
+                    if (closeAfter.contains(index)) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                // closed by the pool, or the test is over
+            } finally {
+                try {
+                    sock.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        slave = new FakeSlave();
+        info = new TPCSlaveInfo("1@" + InetAddress.getLocalHost().getHostAddress()
+            + ":" + slave.server.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        info.closeConnections();
+        slave.server.close();
+    }
+
+    private KVMessage request(String type) {
+        KVMessage req = new KVMessage(type);
+        req.setKey("key");
+        if (KVConstants.PUT_REQ.equals(type)) {
+            req.setValue("value");
+        }
+        return req;
+    }
+
+    @Test(timeout = 10000)
+    public void reusesConnection() throws KVException {
+        for (int i = 0; i < 5; ++i) {
+            assertEquals("value", info.exchange(request(KVConstants.GET_REQ), 1000).getValue());
+        }
+        assertEquals(1, slave.connections.get());
+        assertEquals(5, slave.received.size());
+    }
+
+    @Test(timeout = 10000)
+    public void evictsIdleConnection() throws Exception {
+        info.setPoolLimits(TPCSlaveInfo.DEFAULT_MAX_POOL_SIZE, 50);
+        info.exchange(request(KVConstants.GET_REQ), 1000);
+        Thread.sleep(200);
+        info.exchange(request(KVConstants.GET_REQ), 1000);
+        assertEquals(2, slave.connections.get());
+
+        info.setPoolLimits(0, TPCSlaveInfo.DEFAULT_IDLE_TIMEOUT); // no pooling
+        info.exchange(request(KVConstants.GET_REQ), 1000);
+        info.exchange(request(KVConstants.GET_REQ), 1000);
+        assertEquals(4, slave.connections.get());
+    }
+
+    @Test(timeout = 10000)
+    public void evictsConnectionClosedBySlave() throws Exception {
+        slave.closeAfter.add(0);
+        info.exchange(request(KVConstants.GET_REQ), 1000);
+        Thread.sleep(200); // the EOF is on its way
+        // not sent on the dead connection, even though it is a prepare
+        assertEquals("value", info.exchange(request(KVConstants.PUT_REQ), 1000).getValue());
+        assertEquals(2, slave.connections.get());
+        assertEquals(2, slave.received.size());
+    }
+
+    @Test(timeout = 10000)
+    public void retriesReadOnceOnDeadConnection() throws KVException {
+        slave.drop.add(1);
+        info.exchange(request(KVConstants.GET_REQ), 1000);
+        assertEquals("value", info.exchange(request(KVConstants.GET_REQ), 1000).getValue());
+        assertEquals(2, slave.connections.get());
+        assertEquals(3, slave.received.size());
+
+        slave.drop.add(3);
+        slave.drop.add(4);
+        try {
+            info.exchange(request(KVConstants.COMMIT), 1000);
+            fail("Exchange did not fail with the slave dropping both attempts!");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA, e.getKVMessage().getMessage());
+        }
+        assertEquals(5, slave.received.size()); // retried once, not more
+    }
+
+    @Test(timeout = 10000)
+    public void neverResendsPrepareTheSlaveReceived() throws KVException {
+        slave.drop.add(1);
+        info.exchange(request(KVConstants.GET_REQ), 1000);
+        try {
+            info.exchange(request(KVConstants.PUT_REQ), 1000);
+            fail("Prepare dropped by the slave did not fail!");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA, e.getKVMessage().getMessage());
+        }
+        assertEquals(2, slave.received.size());
+        assertEquals(1, slave.connections.get());
+    }
+}
@@ -0,0 +1,313 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+public class ThreadPoolTest {
+
+    ThreadPool pool;
+    CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void shutdownPool() throws InterruptedException {
+        release.countDown();
+        if (pool != null) {
+            pool.shutdownNow();
+            assertTrue(pool.awaitTermination(5000));
+        }
+    }
+
+    /* a job holding its thread until release */
+    private Runnable blocker(final CountDownLatch started) {
+        return new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // shutdownNow
+                }
+            }
+        };
+    }
+
+    @Test(timeout = 10000)
+    public void executesJobsOnAllThreads() throws InterruptedException {
+        pool = new ThreadPool(4);
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; ++i) {
+            pool.addJob(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void failingJobDoesNotKillThread() throws InterruptedException {
+        pool = new ThreadPool(1);
+        pool.addJob(new Runnable() {
+            public void run() {
+                throw new IllegalStateException();
+            }
+        });
+        final CountDownLatch done = new CountDownLatch(1);
+        pool.addJob(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsWhenFull() throws InterruptedException {
+        pool = new ThreadPool(1, 2, ThreadPool.REJECT);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.addJob(blocker(started));
+        started.await();
+        pool.addJob(blocker(new CountDownLatch(1)));
+        pool.addJob(blocker(new CountDownLatch(1)));
+        try {
+            pool.addJob(blocker(new CountDownLatch(1)));
+            fail("Job accepted by a full queue!");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void callerRunsWhenFull() throws InterruptedException {
+        pool = new ThreadPool(1, 1, ThreadPool.CALLER_RUNS);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.addJob(blocker(started));
+        started.await();
+        pool.addJob(blocker(new CountDownLatch(1)));
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger ranByCaller = new AtomicInteger();
+        pool.addJob(new Runnable() {
+            public void run() {
+                if (Thread.currentThread() == caller) {
+                    ranByCaller.incrementAndGet();
+                }
+            }
+        });
+        assertEquals(1, ranByCaller.get());
+    }
+
+    @Test(timeout = 10000)
+    public void blocksUntilRoom() throws Exception {
+        pool = new ThreadPool(1, 1, ThreadPool.BLOCK);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.addJob(blocker(started));
+        started.await();
+        pool.addJob(blocker(new CountDownLatch(1)));
+        final CountDownLatch added = new CountDownLatch(1);
+        Thread adder = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    pool.addJob(blocker(new CountDownLatch(1)));
+                    added.countDown();
+                } catch (InterruptedException e) {
+                    // test failed
+                }
+            }
+        });
+        adder.start();
+        assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void offerNeverWaitsNorRunsTheJob() throws InterruptedException {
+        for (int policy : new int[] {ThreadPool.BLOCK, ThreadPool.CALLER_RUNS}) {
+            pool = new ThreadPool(1, 1, policy);
+            CountDownLatch started = new CountDownLatch(1);
+            pool.addJob(blocker(started));
+            started.await();
+            pool.offerJob(blocker(new CountDownLatch(1)), -1);
+            final AtomicInteger ran = new AtomicInteger();
+            try {
+                pool.offerJob(new Runnable() {
+                    public void run() {
+                        ran.incrementAndGet();
+                    }
+                }, -1);
+                fail("Job offered to a full queue was accepted!");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            assertEquals(0, ran.get());
+            assertEquals(0, pool.getCallerRuns());
+            pool.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownFinishesQueuedJobs() throws InterruptedException {
+        pool = new ThreadPool(2);
+        final AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 50; ++i) {
+            pool.addJob(new Runnable() {
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5000));
+        assertEquals(50, ran.get());
+        try {
+            pool.addJob(new Runnable() {
+                public void run() {
+                }
+            });
+            fail("Job accepted after shutdown!");
+        } catch (RejectedExecutionException e) {
+            assertTrue(pool.isShutdown());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownNowDropsQueuedJobs() throws InterruptedException {
+        pool = new ThreadPool(1);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.addJob(blocker(started));
+        started.await();
+        pool.addJob(blocker(new CountDownLatch(1)));
+        List<Runnable> dropped = pool.shutdownNow();
+        assertEquals(1, dropped.size());
+        assertTrue(pool.awaitTermination(5000));
+    }
+
+    /* runs a job with an affinity and returns the thread that ran it */
+    private Thread runOn(int affinity) throws InterruptedException {
+        final Thread[] ranOn = new Thread[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        pool.addJob(new Runnable() {
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+                done.countDown();
+            }
+        }, affinity);
+        done.await();
+        return ranOn[0];
+    }
+
+    @Test(timeout = 10000)
+    public void keyAffineJobsRunOnTheirThread() throws InterruptedException {
+        pool = new ThreadPool(2);
+        pool.setKeyAffine(true);
+        Thread odd = runOn(3);
+        Thread even = runOn(4);
+        assertNotSame(odd, even);
+        for (int i = 0; i < 10; ++i) {
+            assertSame(odd, runOn(5 + 2 * i));
+            assertSame(even, runOn(2 * i));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void idleThreadStealsFromBusyOne() throws InterruptedException {
+        pool = new ThreadPool(2);
+        pool.setKeyAffine(true);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.addJob(blocker(started), 0);
+        started.await();
+        final CountDownLatch done = new CountDownLatch(2);
+        for (int i = 1; i <= ThreadPool.STEAL_THRESHOLD + 1; ++i) {
+            pool.addJob(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            }, 2 * i);
+        }
+        // the owner is still blocked, the other thread steals until fewer
+        // than STEAL_THRESHOLD jobs are left in its queue
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void stealingKeepsTheOrderOfAnAffinity() throws InterruptedException {
+        pool = new ThreadPool(2);
+        pool.setKeyAffine(true);
+        final Thread[] owner = new Thread[1];
+        final CountDownLatch started = new CountDownLatch(1);
+        pool.addJob(new Runnable() {
+            public void run() {
+                owner[0] = Thread.currentThread();
+                blocker(started).run();
+            }
+        }, 6);
+        started.await();
+        final int[] next = new int[3];
+        final AtomicInteger[] running = new AtomicInteger[3];
+        final AtomicInteger misordered = new AtomicInteger();
+        final AtomicInteger stolen = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(300);
+        for (int a = 0; a < 3; ++a) {
+            running[a] = new AtomicInteger();
+        }
+        for (int i = 0; i < 300; ++i) {
+            final int set = i % 3;
+            final int seq = i / 3;
+            // affinities 0, 2 and 4 all belong to the blocked thread
+            pool.addJob(new Runnable() {
+                public void run() {
+                    if (running[set].incrementAndGet() != 1 || next[set] != seq) {
+                        misordered.incrementAndGet();
+                    }
+                    next[set] = seq + 1;
+                    if (owner[0] != Thread.currentThread()) {
+                        stolen.incrementAndGet();
+                    }
+                    Thread.yield();
+                    running[set].decrementAndGet();
+                    done.countDown();
+                }
+            }, 2 * set);
+            if (i == 150) {
+                release.countDown();
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, misordered.get());
+        assertTrue(stolen.get() > 0);
+    }
+
+
+    @Test(timeout = 10000)
+    public void recordsWaitServiceAndRejections() throws InterruptedException {
+        pool = new ThreadPool(1, 1, ThreadPool.REJECT);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.addJob(blocker(started));
+        started.await();
+        pool.addJob(blocker(new CountDownLatch(1)));
+        assertEquals(1, pool.getQueueLength());
+        try {
+            pool.addJob(blocker(new CountDownLatch(1)));
+            fail("Job accepted by a full queue!");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, pool.getRejections());
+        }
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5000));
+        assertEquals(2, pool.getQueueLengths().getCount());
+        assertEquals(0, pool.getQueueLengths().getMax()); // each found it empty
+        assertEquals(2, pool.getWaitTimes().getCount());
+        assertEquals(2, pool.getServiceTimes().getCount());
+        assertTrue(pool.getStats("pool").contains("pool_rejections 1\n"));
+    }
+
+}
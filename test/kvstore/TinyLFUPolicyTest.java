@@ -0,0 +1,40 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class TinyLFUPolicyTest {
+
+    @Test
+    public void countsReadsUpToFifteen() {
+        TinyLFUPolicy policy = new TinyLFUPolicy(100);
+        for (int i = 0; i < 3; ++i) {
+            policy.recordAccess("hot");
+        }
+        assertEquals(3, policy.frequency("hot"));
+        assertEquals(0, policy.frequency("cold"));
+        assertTrue(policy.admit("hot", "cold"));
+        assertFalse(policy.admit("cold", "hot"));
+        assertFalse(policy.admit("cold", "cold")); // ties keep the victim
+        for (int i = 0; i < 20; ++i) {
+            policy.recordAccess("hot");
+        }
+        assertEquals(15, policy.frequency("hot"));
+    }
+
+    @Test
+    public void countsFadeWithTime() {
+        TinyLFUPolicy policy = new TinyLFUPolicy(16); // ages every 160 reads
+        for (int i = 0; i < 8; ++i) {
+            policy.recordAccess("old");
+        }
+        for (int i = 0; i < 151; ++i) {
+            policy.recordAccess("other" + i);
+        }
+        int before = policy.frequency("old"); // others collide with it
+        assertTrue(before >= 8);
+        policy.recordAccess("other151");
+        assertEquals(before / 2, policy.frequency("old"));
+    }
+}